@@ -0,0 +1,441 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import com.google.gson.stream.JsonWriter;
+import hudson.FilePath;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes many apps at once against an {@link AppetizeStandInServer} and reports throughput,
+ * latency percentiles, peak heap and peak thread count of this JVM.
+ *
+ * Each simulated publish takes the path of AppetizePublisher on the master, below the Jenkins
+ * build model: claim the app, skip it if the upload cache has it, presign while packaging, wait
+ * for a slot from the {@link AppetizeUploadScheduler}, upload through AppetizeUploadCallable,
+ * then update. The publishes are spread over a number of jobs, so with --latest-wins newer builds
+ * of a job supersede older ones, and with --skip-unchanged all but the first upload of a job are
+ * skipped. Usage:
+ * <pre>java -cp benchmarks.jar org.jenkinsci.plugins.appetize.AppetizeLoadHarness --concurrency=20 --publishes=200
+ *     --platform=ios --shape=SMALL_FILES --ios-upload-mode=TEMP_FILE --part-size-mb=0
+ *     --latency-ms=50 --bandwidth-mbps=100 --error-rate=0.01 --transport=async --json=load.json
+ *     --jobs=50 --max-uploads=8 --upload-mbps=0 --latest-wins=false --skip-unchanged=false</pre>
+ * Every option is optional. --api-url publishes to another server instead of starting a stand-in.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeLoadHarness {
+    // fetches upload URLs while the app is packaged, like AppetizePublisher
+    private static final ExecutorService prefetcher = Executors.newCachedThreadPool();
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 100;
+
+    private final Map<String, String> options;
+    private final AtomicInteger superseded = new AtomicInteger();
+    private final AtomicInteger cached = new AtomicInteger();
+
+    private AppetizeUploadOptions uploadOptions;
+    private AppetizeTransport transport;
+    private int jobs;
+    private boolean latestWins;
+    // null unless unchanged uploads are skipped
+    private AppetizeUploadCache cache;
+
+    private AppetizeLoadHarness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Options are given as --name=value, not " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new AppetizeLoadHarness(options).run();
+        // the HTTP client and zipper pools are daemons, but the stand-in's executor may linger
+        System.exit(0);
+    }
+
+    private String get(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private void run() throws Exception {
+        int concurrency = Integer.parseInt(get("concurrency", "10"));
+        int publishes = Integer.parseInt(get("publishes", String.valueOf(concurrency * 10)));
+        final String platform = get("platform", "ios");
+        SyntheticApp.Shape shape = SyntheticApp.Shape.valueOf(get("shape", "SMALL_FILES"));
+
+        AppetizeStandInServer server = null;
+        String apiUrl = options.get("api-url");
+        if (apiUrl == null) {
+            server = new AppetizeStandInServer(0);
+            server.setLatencyMillis(Long.parseLong(get("latency-ms", "0")));
+            server.setBytesPerSecond((long)(Double.parseDouble(get("bandwidth-mbps", "0")) * 1000 * 1000 / 8));
+            server.setErrorRate(Double.parseDouble(get("error-rate", "0")));
+            server.start();
+            apiUrl = server.getUrl();
+        }
+
+        jobs = Math.max(1, Integer.parseInt(get("jobs", "50")));
+        latestWins = Boolean.parseBoolean(get("latest-wins", "false"));
+        AppetizeUploadScheduler.get().configure(Integer.parseInt(get("max-uploads", "0")),
+                (long)(Double.parseDouble(get("upload-mbps", "0")) * 1000 * 1000 / 8));
+        File cacheFile = null;
+        if (Boolean.parseBoolean(get("skip-unchanged", "false"))) {
+            cacheFile = File.createTempFile("appetize-upload-cache", ".xml");
+            cacheFile.delete();
+            cache = AppetizeUploadCache.load(cacheFile);
+        }
+
+        uploadOptions = new AppetizeUploadOptions(
+                AppetizeRecorder.IosUploadMode.valueOf(get("ios-upload-mode", "TEMP_FILE")),
+                Long.parseLong(get("part-size-mb", "0")) * 1024 * 1024,
+                Integer.parseInt(get("part-parallelism", "4")),
+                new AppetizeRetryPolicy(Integer.parseInt(get("max-attempts", "4")), 30, 120),
+                new AppetizeZipper(AppetizeZipper.DEFAULT_COMPRESSION_LEVEL, AppetizeZipper.DEFAULT_STORED_EXTENSIONS,
+                        Integer.parseInt(get("zip-threads", "0")), false),
+                apiUrl);
+
+        transport = get("transport", "blocking").equals("async") ?
+                AppetizeAsyncTransport.get() : AppetizeUrlConnectionTransport.get();
+
+        final File app = platform.equalsIgnoreCase("ios") ? SyntheticApp.create(shape) : createApk();
+        Sampler sampler = new Sampler();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        try {
+            System.out.println("Publishing " + publishes + " " + platform + " apps, " + concurrency + " at a time, to " + apiUrl);
+            sampler.start();
+            long start = System.nanoTime();
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (int i = 0; i < publishes; i++) {
+                final int buildNumber = i + 1;
+                futures.add(pool.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        return publish(app, platform, buildNumber);
+                    }
+                }));
+            }
+
+            List<Long> latencies = new ArrayList<Long>();
+            int failures = 0;
+            for (Future<Long> future : futures) {
+                long millis = future.get();
+                if (millis < 0) {
+                    failures++;
+                } else {
+                    latencies.add(millis);
+                }
+            }
+            long wallMillis = (System.nanoTime() - start) / 1000000;
+            sampler.stop();
+
+            report(publishes, failures, wallMillis, latencies, sampler, server);
+        } finally {
+            pool.shutdownNow();
+            if (server != null) server.stop();
+            if (cacheFile != null) cacheFile.delete();
+            if (platform.equalsIgnoreCase("ios")) {
+                SyntheticApp.delete(app);
+            } else {
+                app.delete();
+            }
+        }
+    }
+
+    private File createApk() throws IOException {
+        File apk = File.createTempFile("appetize-benchmark", ".apk");
+        FileOutputStream out = new FileOutputStream(apk);
+        try {
+            out.write(SyntheticApp.incompressible(new Random(42), Integer.parseInt(get("apk-size-mb", "20")) * 1024 * 1024));
+        } finally {
+            out.close();
+        }
+        return apk;
+    }
+
+    /**
+     * Publishes one app the way AppetizePublisher does, and records it in {@link AppetizeMetrics}.
+     * @return milliseconds taken, or -1 on failure
+     */
+    private long publish(File app, String platform, int buildNumber) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        AppetizeTimings timings = new AppetizeTimings();
+        PrintStream logger = new PrintStream(new NullOutputStream());
+        String jobUUID = AppetizePublisher.getJobUUID("load-harness", "job-" + (buildNumber % jobs), platform, null, 0);
+        // this build's claim on its app when newer builds supersede older ones, otherwise null
+        AppetizeSupersession.Ticket supersession = latestWins ?
+                AppetizeSupersession.get().claim(jobUUID, buildNumber) : null;
+        final AppetizeApiService appetize = new AppetizeApiService(logger, Proxy.NO_PROXY, uploadOptions.getRetryPolicy());
+        appetize.setApiUrl(uploadOptions.getApiUrl());
+        appetize.setTimings(timings);
+        appetize.setTransport(transport);
+        appetize.setBandwidthLimiter(AppetizeUploadScheduler.get().getLimiter());
+        appetize.setSupersession(supersession);
+
+        boolean success = false;
+        boolean wasSuperseded = false;
+        AppetizePackageBuffer packaged = null;
+        try {
+            if (isSuperseded(supersession)) {
+                wasSuperseded = success = true;
+                return System.currentTimeMillis() - start;
+            }
+
+            String contentDigest = null;
+            if (cache != null) {
+                contentDigest = new AppetizeDigestCallable().invoke(app, null).getDigest();
+                if (cache.lookup(jobUUID, contentDigest, platform, null) != null) {
+                    cached.incrementAndGet();
+                    success = true;
+                    return System.currentTimeMillis() - start;
+                }
+            }
+
+            Future<AppetizeApiService.AppetizePresignedUrls> presign = prefetcher.submit(
+                    new Callable<AppetizeApiService.AppetizePresignedUrls>() {
+                        public AppetizeApiService.AppetizePresignedUrls call() {
+                            return appetize.getPresignedUrls();
+                        }
+                    });
+            if (AppetizeUploadCallable.isPackagedFirst(platform, uploadOptions)) {
+                try {
+                    packaged = AppetizeUploadCallable.pack(new FilePath(app), uploadOptions, timings);
+                } catch (IOException e) {
+                    timings.failed(AppetizeTimings.Phase.PACKAGING);
+                    return -1;
+                }
+            }
+
+            long presignStart = System.currentTimeMillis();
+            AppetizeApiService.AppetizePresignedUrls urls;
+            try {
+                urls = presign.get();
+            } catch (ExecutionException e) {
+                urls = null;
+            }
+            timings.add(AppetizeTimings.Phase.PRESIGN, System.currentTimeMillis() - presignStart);
+            if (urls == null) {
+                if (isSuperseded(supersession)) {
+                    wasSuperseded = success = true;
+                    return System.currentTimeMillis() - start;
+                }
+                timings.failed(AppetizeTimings.Phase.PRESIGN);
+                return -1;
+            }
+            String presignedUrl = platform.equalsIgnoreCase("ios") ? urls.iosUrl : urls.androidUrl;
+
+            long uploadStart = System.currentTimeMillis();
+            long otherPhases = timings.getTotal();
+            AppetizeUploadScheduler.Slot slot = AppetizeUploadScheduler.get().acquire(0, logger, supersession);
+            timings.add(AppetizeTimings.Phase.QUEUE, System.currentTimeMillis() - uploadStart);
+            String uploadUrl = null;
+            if (slot != null) {
+                try {
+                    uploadUrl = packaged != null
+                            ? AppetizeUploadCallable.uploadPackage(packaged, platform, presignedUrl, uploadOptions,
+                                    appetize, logger, null)
+                            : AppetizeUploadCallable.upload(new FilePath(app), platform, presignedUrl, uploadOptions,
+                                    appetize, logger, null);
+                } finally {
+                    slot.release();
+                }
+                long elapsed = System.currentTimeMillis() - uploadStart;
+                timings.add(AppetizeTimings.Phase.UPLOAD, elapsed - (timings.getTotal() - otherPhases));
+            }
+            if (uploadUrl == null) {
+                if (isSuperseded(supersession)) {
+                    wasSuperseded = success = true;
+                    return System.currentTimeMillis() - start;
+                }
+                timings.failed(AppetizeTimings.Phase.UPLOAD);
+                return -1;
+            }
+
+            AppetizeApiService.AppetizeUpdateParams params = new AppetizeApiService.AppetizeUpdateParams();
+            params.url = uploadUrl;
+            params.platform = platform;
+            params.token = AppetizeRecorder.PLACEHOLDER_API_TOKEN;
+            params.source = "appetize-jenkins-plugin";
+            params.jenkinsUUID = "load-harness";
+            params.jobUUID = jobUUID;
+            params.buildNumber = buildNumber;
+            // the upload is wasted, but the newer build's app must not be overwritten
+            if (isSuperseded(supersession)) {
+                wasSuperseded = success = true;
+                return System.currentTimeMillis() - start;
+            }
+            long updateStart = System.currentTimeMillis();
+            AppetizeApiService.AppetizeUpdateResult result = appetize.updateApp(params);
+            timings.add(AppetizeTimings.Phase.UPDATE, System.currentTimeMillis() - updateStart);
+            if (result == null) {
+                timings.failed(AppetizeTimings.Phase.UPDATE);
+                return -1;
+            }
+            if (cache != null) cache.record(jobUUID, new AppetizeUploadCache.Entry(contentDigest, platform, null, result));
+            success = true;
+            return System.currentTimeMillis() - start;
+        } finally {
+            if (packaged != null) packaged.dispose();
+            AppetizeMetrics.get().record(timings, success);
+            if (wasSuperseded) {
+                superseded.incrementAndGet();
+                AppetizeMetrics.get().recordSuperseded();
+            }
+        }
+    }
+
+    private static boolean isSuperseded(AppetizeSupersession.Ticket supersession) {
+        return supersession != null && supersession.isSuperseded();
+    }
+
+    private void report(int publishes, int failures, long wallMillis, List<Long> latencies, Sampler sampler,
+                        AppetizeStandInServer server) throws IOException {
+        Collections.sort(latencies);
+        AppetizeMetrics metrics = AppetizeMetrics.get();
+        double seconds = Math.max(1, wallMillis) / 1000.0;
+
+        System.out.println();
+        System.out.println(String.format("Publishes:        %d (%d failed)", publishes, failures));
+        System.out.println(String.format("Wall time:        %.1f s", seconds));
+        System.out.println(String.format("Throughput:       %.2f publishes/s, %.1f MB/s uploaded",
+                (publishes - failures) / seconds, metrics.getBytesUploaded() / seconds / (1024 * 1024)));
+        System.out.println(String.format("Latency:          p50 %d ms, p95 %d ms, p99 %d ms, max %d ms",
+                percentile(latencies, 50), percentile(latencies, 95), percentile(latencies, 99),
+                percentile(latencies, 100)));
+        System.out.println(String.format("Retries:          %d", metrics.getRetries()));
+        System.out.println(String.format("Skipped:          %d unchanged, %d superseded", cached.get(), superseded.get()));
+        System.out.println(String.format("Peak heap:        %.1f MB", sampler.peakHeapBytes / (1024.0 * 1024.0)));
+        System.out.println(String.format("Peak threads:     %d", sampler.peakThreads));
+        if (server != null) {
+            System.out.println(String.format("Server requests:  %d (%d injected errors)",
+                    server.getRequests(), server.getInjectedErrors()));
+        }
+
+        String json = options.get("json");
+        if (json != null) {
+            JsonWriter out = new JsonWriter(new OutputStreamWriter(new FileOutputStream(json), "UTF-8"));
+            try {
+                out.setIndent("  ");
+                out.beginObject();
+                out.name("options").beginObject();
+                for (Map.Entry<String, String> option : options.entrySet()) {
+                    out.name(option.getKey()).value(option.getValue());
+                }
+                out.endObject();
+                out.name("publishes").value(publishes);
+                out.name("failures").value(failures);
+                out.name("unchanged").value(cached.get());
+                out.name("superseded").value(superseded.get());
+                out.name("wallMillis").value(wallMillis);
+                out.name("latencyMillis").beginObject();
+                out.name("p50").value(percentile(latencies, 50));
+                out.name("p95").value(percentile(latencies, 95));
+                out.name("p99").value(percentile(latencies, 99));
+                out.name("max").value(percentile(latencies, 100));
+                out.endObject();
+                out.name("peakHeapBytes").value(sampler.peakHeapBytes);
+                out.name("peakThreads").value(sampler.peakThreads);
+                out.name("metrics");
+                metrics.writeJson(out);
+                out.endObject();
+            } finally {
+                out.close();
+            }
+            System.out.println("Results written to " + json);
+        }
+    }
+
+    /**
+     * @return the nearest-rank percentile of sorted values, or 0 if there are none
+     */
+    static long percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) return 0;
+        int rank = (int)Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size(), rank) - 1));
+    }
+
+    /**
+     * Records the peak heap use and thread count while the publishes run
+     */
+    private static class Sampler implements Runnable {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private volatile boolean running;
+        private volatile long peakHeapBytes;
+        private volatile int peakThreads;
+        private Thread thread;
+
+        void start() {
+            running = true;
+            thread = new Thread(this, "Appetize.io load harness sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+
+        public void run() {
+            while (running) {
+                peakHeapBytes = Math.max(peakHeapBytes, memory.getHeapMemoryUsage().getUsed());
+                peakThreads = Math.max(peakThreads, threads.getThreadCount());
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
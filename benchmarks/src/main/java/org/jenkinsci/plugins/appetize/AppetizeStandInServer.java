@@ -0,0 +1,298 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for the Appetize.io API and its upload storage, for trying out publishing
+ * without the real service. It answers <tt>/v1/jenkins/presigned</tt> with URLs pointing back to
+ * itself, accepts single and multipart uploads to them, and answers <tt>/v1/app/update</tt>.
+ * Latency, an aggregate bandwidth cap and a rate of 503 errors can be injected.
+ *
+ * Point the plugin at it with the "API URL" in the global configuration, or run it on its own:
+ * <pre>java -cp benchmarks.jar org.jenkinsci.plugins.appetize.AppetizeStandInServer [port] [latencyMillis] [bytesPerSecond] [errorRate]</pre>
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeStandInServer {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Random random = new Random();
+    private final AtomicLong uploadIds = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private volatile long latencyMillis;
+    // 0 for no limit
+    private volatile long bytesPerSecond;
+    private volatile double errorRate;
+    // when the bandwidth cap next has room, in System.nanoTime() terms
+    private long bandwidthAvailableAt;
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     */
+    public AppetizeStandInServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.setExecutor(executor);
+        server.createContext("/v1/jenkins/presigned", new Handler() {
+            void handle(HttpExchange exchange, String path) throws IOException, InterruptedException {
+                presign(exchange);
+            }
+        });
+        server.createContext("/v1/app/update", new Handler() {
+            void handle(HttpExchange exchange, String path) throws IOException, InterruptedException {
+                update(exchange);
+            }
+        });
+        server.createContext("/upload/", new Handler() {
+            void handle(HttpExchange exchange, String path) throws IOException, InterruptedException {
+                upload(exchange, path);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return base URL to use as the API URL
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param latencyMillis delay before every response
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param bytesPerSecond upload bandwidth shared by all connections, 0 for no limit
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param errorRate fraction of requests answered with 503, from 0 to 1
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Injects latency and errors, then hands the request to the endpoint
+     */
+    private abstract class Handler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                requests.incrementAndGet();
+                if (latencyMillis > 0) Thread.sleep(latencyMillis);
+                if (errorRate > 0 && nextDouble() < errorRate) {
+                    injectedErrors.incrementAndGet();
+                    drain(exchange.getRequestBody(), false);
+                    respond(exchange, 503, "text/plain", "Injected error");
+                    return;
+                }
+                handle(exchange, exchange.getRequestURI().getPath());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        }
+
+        abstract void handle(HttpExchange exchange, String path) throws IOException, InterruptedException;
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    private void presign(HttpExchange exchange) throws IOException {
+        int parts = 0;
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.startsWith("parts=")) {
+            try {
+                parts = Integer.parseInt(query.substring("parts=".length()));
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, "text/plain", "Invalid parts");
+                return;
+            }
+        }
+
+        AppetizeApiService.AppetizePresignedUrls urls = new AppetizeApiService.AppetizePresignedUrls();
+        urls.iosUrl = newUploadUrl();
+        urls.androidUrl = newUploadUrl();
+        if (parts > 0) {
+            urls.iosMultipart = newMultipartUrls(parts);
+            urls.androidMultipart = newMultipartUrls(parts);
+        }
+        respond(exchange, 200, "application/json", AppetizeJson.GSON.toJson(urls));
+    }
+
+    private String newUploadUrl() {
+        return getUrl() + "/upload/" + uploadIds.incrementAndGet();
+    }
+
+    private AppetizeApiService.AppetizeMultipartUrls newMultipartUrls(int parts) {
+        AppetizeApiService.AppetizeMultipartUrls multipart = new AppetizeApiService.AppetizeMultipartUrls();
+        multipart.url = newUploadUrl();
+        multipart.completeUrl = multipart.url + "/complete";
+        List<String> partUrls = new ArrayList<String>();
+        for (int i = 1; i <= parts; i++) {
+            partUrls.add(multipart.url + "/part/" + i);
+        }
+        multipart.partUrls = partUrls;
+        return multipart;
+    }
+
+    private void upload(HttpExchange exchange, String path) throws IOException, InterruptedException {
+        String method = exchange.getRequestMethod();
+        if (method.equals("POST") && path.endsWith("/complete")) {
+            drain(exchange.getRequestBody(), false);
+            respond(exchange, 200, "application/xml", "<CompleteMultipartUploadResult/>");
+        } else if (method.equals("PUT")) {
+            long length = drain(exchange.getRequestBody(), true);
+            exchange.getResponseHeaders().set("ETag", "\"" + Long.toHexString(length) + "-" + path.hashCode() + "\"");
+            respond(exchange, 200, "text/plain", "");
+        } else {
+            respond(exchange, 405, "text/plain", "Method not allowed");
+        }
+    }
+
+    private void update(HttpExchange exchange) throws IOException {
+        JsonObject params;
+        try {
+            params = new JsonParser().parse(new InputStreamReader(exchange.getRequestBody(), "UTF-8")).getAsJsonObject();
+        } catch (RuntimeException e) {
+            respond(exchange, 400, "text/plain", "Invalid JSON");
+            return;
+        }
+        if (!params.has("url") || !params.has("platform")) {
+            respond(exchange, 400, "text/plain", "Missing url or platform");
+            return;
+        }
+
+        String jobUUID = params.has("jobUUID") ? params.get("jobUUID").getAsString() : "job";
+        String publicKey = "p" + Integer.toHexString(jobUUID.hashCode());
+        AppetizeApiService.AppetizeUpdateResult result = new AppetizeApiService.AppetizeUpdateResult();
+        result.publicKey = publicKey;
+        result.privateKey = "private_" + publicKey;
+        result.publicURL = getUrl() + "/app/" + publicKey;
+        result.appURL = result.publicURL;
+        result.manageURL = getUrl() + "/manage/" + result.privateKey;
+        respond(exchange, 200, "application/json", AppetizeJson.GSON.toJson(result));
+    }
+
+    /**
+     * Reads a request body, at the capped bandwidth if it is an upload.
+     * @return number of bytes read
+     */
+    private long drain(InputStream in, boolean throttle) throws IOException, InterruptedException {
+        byte[] buf = new byte[64 * 1024];
+        long total = 0;
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            if (throttle) throttle(len);
+            total += len;
+        }
+        if (throttle) bytesReceived.addAndGet(total);
+        return total;
+    }
+
+    private void throttle(int bytes) throws InterruptedException {
+        long limit = bytesPerSecond;
+        if (limit <= 0) return;
+
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, bandwidthAvailableAt);
+            bandwidthAvailableAt = start + bytes * TimeUnit.SECONDS.toNanos(1) / limit;
+            waitNanos = bandwidthAvailableAt - now;
+        }
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        // even an empty write to a response without a body makes the server drop the connection
+        if (bytes.length > 0) out.write(bytes);
+        out.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        AppetizeStandInServer server = new AppetizeStandInServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+        if (args.length > 1) server.setLatencyMillis(Long.parseLong(args[1]));
+        if (args.length > 2) server.setBytesPerSecond(Long.parseLong(args[2]));
+        if (args.length > 3) server.setErrorRate(Double.parseDouble(args[3]));
+        server.start();
+        System.out.println("Appetize.io stand-in listening at " + server.getUrl());
+    }
+}
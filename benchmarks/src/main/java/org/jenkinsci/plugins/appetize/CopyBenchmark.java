@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stream copy behind every single-request upload, with different buffer sizes, and reading
+ * a response body into a string.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+    private static final int PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * An upload payload and the buffer it's copied through
+     */
+    @State(Scope.Thread)
+    public static class Upload {
+        @Param({"4096", "10240", "65536", "262144", "1048576"})
+        public int bufferSize;
+
+        byte[] payload;
+        byte[] buffer;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            payload = SyntheticApp.incompressible(new Random(42), PAYLOAD_SIZE);
+            buffer = new byte[bufferSize];
+        }
+    }
+
+    /**
+     * A response body
+     */
+    @State(Scope.Thread)
+    public static class Response {
+        @Param({"256", "65536"})
+        public int responseSize;
+
+        byte[] body;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            body = SyntheticApp.compressible(new Random(42), responseSize);
+        }
+    }
+
+    /**
+     * Copies 16 MB, so throughput times 16 is MB/s.
+     */
+    @Benchmark
+    public long copy(Upload upload, Blackhole blackhole) throws IOException {
+        return AppetizeApiService.copy(new ByteArrayInputStream(upload.payload), new BlackholeOutputStream(blackhole),
+                upload.buffer);
+    }
+
+    @Benchmark
+    public String readToString(Response response) throws IOException {
+        return AppetizeUrlConnectionTransport.readToString(new ByteArrayInputStream(response.body));
+    }
+
+    /**
+     * Hands written bytes to JMH, standing in for a socket
+     */
+    private static class BlackholeOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+        }
+    }
+}
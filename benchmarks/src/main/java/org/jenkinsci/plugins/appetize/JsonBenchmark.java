@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding the Appetize.io API requests and responses with {@link AppetizeJson}.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JsonBenchmark {
+    private AppetizeApiService.AppetizeUpdateParams params;
+    private String updateResult;
+    private String presignedUrls;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        params = new AppetizeApiService.AppetizeUpdateParams();
+        params.url = "https://appetize-uploads.s3.amazonaws.com/abcdef0123456789?X-Amz-Signature=0123456789abcdef";
+        params.platform = "ios";
+        params.token = "tok_0123456789abcdefghijklmnop";
+        params.source = "appetize-jenkins-plugin";
+        params.jenkinsUUID = "3f1d0f6e-8a53-4c1f-9d4b-2f8e0c6a7b51";
+        params.jobUUID = AppetizePublisher.getJobUUID(params.jenkinsUUID, "benchmark-job", "ios", null, 0);
+        params.buildNumber = 1234;
+
+        AppetizeApiService.AppetizeUpdateResult result = new AppetizeApiService.AppetizeUpdateResult();
+        result.publicKey = "p7nww3n6ubq3bybq6quwuwjwpc";
+        result.privateKey = "private_k9a0bm2kbtzgmedmdydvx3ngkr";
+        result.publicURL = "https://appetize.io/app/p7nww3n6ubq3bybq6quwuwjwpc";
+        result.appURL = "https://appetize.io/app/p7nww3n6ubq3bybq6quwuwjwpc";
+        result.manageURL = "https://appetize.io/manage/private_k9a0bm2kbtzgmedmdydvx3ngkr";
+        updateResult = AppetizeJson.GSON.toJson(result);
+
+        AppetizeApiService.AppetizePresignedUrls urls = new AppetizeApiService.AppetizePresignedUrls();
+        urls.iosUrl = params.url;
+        urls.androidUrl = params.url;
+        urls.iosMultipart = new AppetizeApiService.AppetizeMultipartUrls();
+        urls.iosMultipart.url = params.url;
+        urls.iosMultipart.completeUrl = params.url + "&uploadId=complete";
+        urls.iosMultipart.partUrls = new ArrayList<String>();
+        for (int i = 1; i <= 20; i++) {
+            urls.iosMultipart.partUrls.add(params.url + "&partNumber=" + i);
+        }
+        presignedUrls = AppetizeJson.GSON.toJson(urls);
+    }
+
+    @Benchmark
+    public String encodeUpdateParams() {
+        return AppetizeJson.GSON.toJson(params);
+    }
+
+    @Benchmark
+    public AppetizeApiService.AppetizeUpdateResult decodeUpdateResult() {
+        return AppetizeJson.GSON.fromJson(updateResult, AppetizeApiService.AppetizeUpdateResult.class);
+    }
+
+    @Benchmark
+    public AppetizeApiService.AppetizePresignedUrls decodePresignedUrls() {
+        return AppetizeJson.GSON.fromJson(presignedUrls, AppetizeApiService.AppetizePresignedUrls.class);
+    }
+}
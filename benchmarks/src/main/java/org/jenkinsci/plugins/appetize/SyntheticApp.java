@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generates an .app directory of a given shape for the benchmarks, the same for every run.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+final class SyntheticApp {
+    /**
+     * Layouts of a generated app
+     */
+    enum Shape {
+        // thousands of small compressible files in nested directories, like nibs and plists
+        SMALL_FILES,
+        // a few hundred already-compressed images
+        ASSETS,
+        // one large executable with a handful of resources
+        BINARY
+    }
+
+    private static final String[] WORDS = {
+            "CFBundleIdentifier", "UIView", "NSString", "key", "string", "integer", "dict", "array",
+            "objc_msgSend", "_TtC", "swift", "layer", "frame", "bounds", "0x00000000", "true", "false"
+    };
+
+    private SyntheticApp() {
+    }
+
+    /**
+     * Creates the app in a new temporary directory, which the caller deletes.
+     * @return the .app directory
+     */
+    static File create(Shape shape) throws IOException {
+        File root = File.createTempFile("appetize-benchmark", "");
+        if (!root.delete() || !root.mkdir()) throw new IOException("Could not create " + root);
+        File app = new File(root, "Benchmark.app");
+        Random random = new Random(42);
+        switch (shape) {
+            case SMALL_FILES:
+                for (int i = 0; i < 3000; i++) {
+                    String dir = "Base.lproj/Storyboards/" + (i % 20) + "/" + (i % 7);
+                    write(new File(app, dir + "/View" + i + ".nib"), compressible(random, 2048 + random.nextInt(14 * 1024)));
+                }
+                break;
+            case ASSETS:
+                for (int i = 0; i < 200; i++) {
+                    write(new File(app, "Images/image" + i + ".png"), incompressible(random, 50 * 1024 + random.nextInt(450 * 1024)));
+                }
+                break;
+            case BINARY:
+                write(new File(app, "Benchmark"), compressible(random, 40 * 1024 * 1024));
+                for (int i = 0; i < 10; i++) {
+                    write(new File(app, "Resource" + i + ".plist"), compressible(random, 4096));
+                }
+                break;
+        }
+        write(new File(app, "Info.plist"), compressible(random, 2048));
+        return app;
+    }
+
+    /**
+     * Deletes an app made by {@link #create} together with its temporary directory.
+     */
+    static void delete(File app) {
+        if (app != null) deleteRecursively(app.getParentFile());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * @return text made of a small vocabulary, which deflates about as well as compiled resources
+     */
+    static byte[] compressible(Random random, int length) {
+        StringBuilder text = new StringBuilder(length + 32);
+        while (text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(4) == 0 ? '\n' : ' ');
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte)text.charAt(i);
+        }
+        return bytes;
+    }
+
+    static byte[] incompressible(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) throw new IOException("Could not create " + parent);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Zips generated .app directories of different shapes with the zipper settings that matter most
+ * for speed: compression level, thread count and the incremental cache.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipBenchmark {
+    @Param({"SMALL_FILES", "ASSETS", "BINARY"})
+    public SyntheticApp.Shape shape;
+
+    @Param({"1", "6"})
+    public int compressionLevel;
+
+    // 0 uses every core
+    @Param({"1", "0"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean incremental;
+
+    private File app;
+    private AppetizeZipper zipper;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        app = SyntheticApp.create(shape);
+        zipper = new AppetizeZipper(compressionLevel, AppetizeZipper.DEFAULT_STORED_EXTENSIONS, threads, incremental);
+        if (incremental) {
+            // measure the rebuild of an unchanged app, not the first zip
+            zipper.zip(app, new NullOutputStream());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticApp.delete(app);
+    }
+
+    /**
+     * @return size of the zip, so that the work can't be optimized away
+     */
+    @Benchmark
+    public long zip() throws IOException, InterruptedException {
+        CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+        zipper.zip(app, out);
+        return out.getByteCount();
+    }
+}
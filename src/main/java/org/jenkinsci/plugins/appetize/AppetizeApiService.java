@@ -24,33 +24,147 @@
 
 package org.jenkinsci.plugins.appetize;
 
-import com.google.gson.Gson;
-
 import java.io.*;
-import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.URL;
-import hudson.ProxyConfiguration;
-import jenkins.model.Jenkins;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import hudson.FilePath;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 
 /**
  * Developers: Weiyin He and John Snyder
  */
 public class AppetizeApiService {
-    private final String PRESIGN_URL = "https://api.appetize.io/v1/jenkins/presigned";
-    private final String UPDATE_URL = "https://api.appetize.io/v1/app/update";
+    public static final String DEFAULT_API_URL = "https://api.appetize.io";
+    private static final String PRESIGN_PATH = "/v1/jenkins/presigned";
+    private static final String UPDATE_PATH = "/v1/app/update";
+    static final int COPY_BUFFER_SIZE = 10 * 1024;
+
+    // delays retries of asynchronous requests without holding a thread per request
+    private static final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Appetize.io request retry"));
 
     private PrintStream logger;
-    private Gson gson;
+    private Proxy proxy;
+    private AppetizeRetryPolicy retryPolicy;
+    private AppetizeTimings timings = new AppetizeTimings();
+    private String apiUrl = DEFAULT_API_URL;
+    private AppetizeBandwidthLimiter bandwidthLimiter;
+    private AppetizeSupersession.Ticket supersession;
+    private AppetizeTransport transport = AppetizeUrlConnectionTransport.get();
 
     public AppetizeApiService(PrintStream logger) {
+        this(logger, null, new AppetizeRetryPolicy());
+    }
+
+    public AppetizeApiService(PrintStream logger, AppetizeRetryPolicy retryPolicy) {
+        this(logger, null, retryPolicy);
+    }
+
+    /**
+     * @param logger build log, may be null
+     * @param proxy proxy to use for every request, or null to look up the Jenkins global proxy.
+     *              Must be set when running on a slave, where the Jenkins configuration is not available.
+     * @param retryPolicy timeouts and retries for every request
+     */
+    public AppetizeApiService(PrintStream logger, Proxy proxy, AppetizeRetryPolicy retryPolicy) {
         this.logger = logger;
-        this.gson = new Gson();
+        this.proxy = proxy;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @return retries and uploaded bytes counted by this service
+     */
+    public AppetizeTimings getTimings() {
+        return timings;
+    }
+
+    public void setTimings(AppetizeTimings timings) {
+        this.timings = timings;
+    }
+
+    /**
+     * @param bandwidthLimiter throttles every upload of this service, null for no limit
+     */
+    public void setBandwidthLimiter(AppetizeBandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * @param supersession stops requests once a newer build claims the app, null to never stop
+     */
+    public void setSupersession(AppetizeSupersession.Ticket supersession) {
+        this.supersession = supersession;
+    }
+
+    /**
+     * @param transport sends the requests of this service
+     */
+    public void setTransport(AppetizeTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return true if requests to a URL that don't need a thread to write their body are sent
+     * without holding the calling thread, so that many can be in flight at once
+     */
+    public boolean isAsynchronous(String urlString) throws MalformedURLException {
+        return transport.isAsynchronous() && !isThrottled()
+                && !AppetizeHttpClient.get().isSocksProxied(new URL(urlString), proxy);
+    }
+
+    public String getApiUrl() {
+        return apiUrl;
+    }
+
+    /**
+     * @param apiUrl base URL of the Appetize.io API, such as a local stand-in for testing,
+     *               or null or empty for the real service
+     */
+    public void setApiUrl(String apiUrl) {
+        this.apiUrl = normalizeApiUrl(apiUrl);
+    }
+
+    /**
+     * @return the URL without trailing slashes, or the default URL if it is empty
+     */
+    public static String normalizeApiUrl(String apiUrl) {
+        if (apiUrl == null || apiUrl.trim().isEmpty()) return DEFAULT_API_URL;
+        apiUrl = apiUrl.trim();
+        while (apiUrl.endsWith("/")) {
+            apiUrl = apiUrl.substring(0, apiUrl.length() - 1);
+        }
+        return apiUrl;
     }
 
     public static class AppetizePresignedUrls {
         public String iosUrl;
         public String androidUrl;
+        public AppetizeMultipartUrls iosMultipart;
+        public AppetizeMultipartUrls androidMultipart;
+    }
+
+    /**
+     * Pre-signed URLs for uploading one app in several parts
+     */
+    public static class AppetizeMultipartUrls {
+        // URL of the assembled app, passed to updateApp once the upload is complete
+        public String url;
+        public List<String> partUrls;
+        public String completeUrl;
     }
 
     public static class AppetizeUpdateParams {
@@ -72,152 +186,599 @@ public class AppetizeApiService {
         public String manageURL;
     }
 
+    /**
+     * A request and what to make of its response. The request is sent again for every attempt,
+     * so its body must be repeatable unless it is only attempted once.
+     */
+    private abstract class Call<T> {
+        abstract AppetizeTransport.Request createRequest() throws IOException;
+
+        /**
+         * @throws StatusException for a status other than 2xx
+         */
+        abstract T handle(AppetizeTransport.Response response) throws IOException;
+    }
+
+    /**
+     * Thrown for a response status other than 2xx
+     */
+    static class StatusException extends IOException {
+        private final int status;
+        private final long retryAfterMillis;
+
+        StatusException(AppetizeTransport.Response response, String message) {
+            super("Status " + response.getStatus() + (message != null ? ": " + message : ""));
+            this.status = response.getStatus();
+            this.retryAfterMillis = parseRetryAfter(response.getHeader("Retry-After"));
+        }
+
+        /**
+         * @return true for server errors, throttling and timeouts, which may succeed if repeated
+         */
+        boolean isRetryable() {
+            return status >= 500 || status == 429 || status == 408;
+        }
+    }
+
     public AppetizePresignedUrls getPresignedUrls() {
-        HttpURLConnection connection = null;
-        try {
-            URL url = new URL(PRESIGN_URL);
-            connection = getConnection(url);
-            connection.setRequestMethod("GET");
-            connection.connect();
-            int status = connection.getResponseCode();
-
-            if (status >= 200 && status <= 299) {
-                InputStreamReader reader = new InputStreamReader(connection.getInputStream());
-                return gson.fromJson(reader, AppetizePresignedUrls.class);
-            } else {
-                String errorMessage = readToString(connection.getErrorStream());
-                throw new Exception("Status " + status + ": " + errorMessage);
+        return getPresignedUrls(0);
+    }
+
+    /**
+     * Returns pre-signed upload URLs, including multipart URLs if parts is greater than zero
+     * and the Appetize.io API supports multipart uploads.
+     * @param parts number of parts to pre-sign
+     */
+    public AppetizePresignedUrls getPresignedUrls(int parts) {
+        return await(getPresignedUrlsAsync(parts), null);
+    }
+
+    /**
+     * @see #getPresignedUrls(int)
+     * @return future of the URLs, or of null on failure
+     */
+    public AppetizeFuture<AppetizePresignedUrls> getPresignedUrlsAsync(final int parts) {
+        return call(new Call<AppetizePresignedUrls>() {
+            AppetizeTransport.Request createRequest() throws IOException {
+                String presignUrl = apiUrl + PRESIGN_PATH;
+                return new AppetizeTransport.Request("GET", new URL(parts > 0 ? presignUrl + "?parts=" + parts : presignUrl));
             }
-        } catch (Exception e) {
-            println("Error getting Appetize.io upload URLs");
-            println(e.getMessage());
-            return null;
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
+
+            AppetizePresignedUrls handle(AppetizeTransport.Response response) throws IOException {
+                if (!response.isSuccessful()) throw new StatusException(response, response.getBody());
+                return AppetizeJson.GSON.fromJson(response.getBody(), AppetizePresignedUrls.class);
             }
+        }, "Error getting Appetize.io upload URLs", null);
+    }
+
+    /**
+     * Returns pre-signed URLs for uploading an app in the given number of parts.
+     * @return multipart URLs, or null if they are not available
+     */
+    public AppetizeMultipartUrls getMultipartUrls(String platform, int parts) {
+        AppetizePresignedUrls urls = getPresignedUrls(parts);
+        if (urls == null) return null;
+
+        AppetizeMultipartUrls multipart = platform.equalsIgnoreCase("ios") ? urls.iosMultipart : urls.androidMultipart;
+        if (multipart == null || multipart.url == null || multipart.completeUrl == null ||
+                multipart.partUrls == null || multipart.partUrls.size() != parts) {
+            return null;
         }
+        return multipart;
     }
 
-    public boolean uploadData(InputStream in, String urlString) {
-        HttpURLConnection connection = null;
+    /**
+     * Uploads a stream in a single attempt, since the stream cannot be read again.
+     * Prefer {@link #uploadData(FilePath, String)}, which can be retried.
+     */
+    public boolean uploadData(final InputStream in, final String urlString) {
         try {
-            URL url = new URL(urlString);
-            connection = getConnection(url);
-            connection.setDoOutput(true);
-            connection.setRequestMethod("PUT");
-
-            OutputStream out = connection.getOutputStream();
-            copy(in, out);
-            in.close();
-            out.close();
-
-            int status = connection.getResponseCode();
-            if (status >= 200 && status <= 299) {
+            return await(call(new Call<Boolean>() {
+                AppetizeTransport.Request createRequest() throws IOException {
+                    AppetizeTransport.Request request = createUpload(urlString);
+                    request.setBody(new AppetizeTransport.StreamBody() {
+                        public long writeTo(OutputStream out) throws IOException {
+                            return copy(in, out);
+                        }
+                    }, -1, false);
+                    return request;
+                }
+
+                Boolean handle(AppetizeTransport.Response response) throws IOException {
+                    return uploaded(response);
+                }
+            }, 1, "Error uploading to " + urlString, false), false);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Uploads a file, reading it again for every attempt.
+     * @param file file to upload, local or on a slave
+     * @param urlString pre-signed upload URL
+     * @return true on success
+     */
+    public boolean uploadData(FilePath file, String urlString) {
+        return await(uploadDataAsync(file, urlString), false);
+    }
+
+    /**
+     * @see #uploadData(FilePath, String)
+     * @return future of true on success, false on failure. Only local files are uploaded
+     * without holding a thread.
+     */
+    public AppetizeFuture<Boolean> uploadDataAsync(final FilePath file, final String urlString) {
+        return call(new Call<Boolean>() {
+            AppetizeTransport.Request createRequest() throws IOException {
+                AppetizeTransport.Request request = createUpload(urlString);
+                if (!file.isRemote()) {
+                    File local = new File(file.getRemote());
+                    request.setBody(local, 0, local.length());
+                } else {
+                    // with a known length the connection streams the body instead of collecting it in memory
+                    long length;
+                    try {
+                        length = file.length();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while checking the size of " + file.getRemote());
+                    }
+                    request.setBody(new AppetizeTransport.StreamBody() {
+                        public long writeTo(OutputStream out) throws IOException, InterruptedException {
+                            InputStream in = file.read();
+                            try {
+                                return copy(in, out);
+                            } finally {
+                                in.close();
+                            }
+                        }
+                    }, length, false);
+                }
+                return request;
+            }
+
+            Boolean handle(AppetizeTransport.Response response) throws IOException {
+                return uploaded(response);
+            }
+        }, "Error uploading to " + urlString, false);
+    }
+
+    /**
+     * Uploads a packaged app with a known Content-Length, reading it from the start for every attempt.
+     * @param buffer package that has been closed
+     * @param urlString pre-signed upload URL
+     * @return true on success
+     */
+    public boolean uploadBuffer(final AppetizePackageBuffer buffer, final String urlString) {
+        return await(call(new Call<Boolean>() {
+            AppetizeTransport.Request createRequest() throws IOException {
+                AppetizeTransport.Request request = createUpload(urlString);
+                request.setBody(new AppetizeTransport.StreamBody() {
+                    public long writeTo(OutputStream out) throws IOException {
+                        return buffer.writeTo(out);
+                    }
+                }, buffer.getLength(), false);
+                return request;
+            }
+
+            Boolean handle(AppetizeTransport.Response response) throws IOException {
+                return uploaded(response);
+            }
+        }, "Error uploading to " + urlString, false), false);
+    }
+
+    private boolean uploaded(AppetizeTransport.Response response) throws IOException {
+        if (!response.isSuccessful()) throw new StatusException(response, null);
+        timings.addBytesUploaded(response.getBytesSent());
+        return true;
+    }
+
+    /**
+     * Uploads one part of a file to a pre-signed part URL.
+     * @param file file to read from
+     * @param offset position of the part in the file
+     * @param length length of the part
+     * @param urlString pre-signed part URL
+     * @return ETag of the uploaded part, or null on failure
+     */
+    public String uploadPart(File file, long offset, int length, String urlString) {
+        return await(uploadPartAsync(file, offset, length, urlString), null);
+    }
+
+    /**
+     * @see #uploadPart
+     * @return future of the ETag of the uploaded part, or of null on failure
+     */
+    public AppetizeFuture<String> uploadPartAsync(final File file, final long offset, final int length,
+                                                  final String urlString) {
+        return call(new Call<String>() {
+            AppetizeTransport.Request createRequest() throws IOException {
+                AppetizeTransport.Request request = createUpload(urlString);
+                request.setBody(file, offset, length);
+                return request;
+            }
+
+            String handle(AppetizeTransport.Response response) throws IOException {
+                uploaded(response);
+                return response.getHeader("ETag");
+            }
+        }, "Error uploading part to " + urlString, null);
+    }
+
+    /**
+     * Assembles uploaded parts into a single object.
+     * @param urlString pre-signed complete URL
+     * @param etags ETags of the parts, in order
+     * @return true on success
+     */
+    public boolean completeMultipartUpload(final String urlString, final List<String> etags) {
+        return await(call(new Call<Boolean>() {
+            AppetizeTransport.Request createRequest() throws IOException {
+                StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+                for (int i = 0; i < etags.size(); i++) {
+                    xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                            .append(etags.get(i).replace("&", "&amp;").replace("\"", "&quot;"))
+                            .append("</ETag></Part>");
+                }
+                xml.append("</CompleteMultipartUpload>");
+
+                AppetizeTransport.Request request = new AppetizeTransport.Request("POST", new URL(urlString));
+                request.setHeader("Content-Type", "application/xml");
+                request.setBody(xml.toString().getBytes("UTF-8"));
+                return request;
+            }
+
+            Boolean handle(AppetizeTransport.Response response) throws IOException {
+                if (!response.isSuccessful()) throw new StatusException(response, response.getBody());
+                // S3 can report a failure with status 200 and an Error document
+                if (response.getBody() != null && response.getBody().contains("<Error>")) {
+                    throw new IOException(response.getBody());
+                }
                 return true;
-            } else {
-                throw new Exception("Status " + status);
             }
-        } catch (Exception e) {
-            println("Error uploading to " + urlString);
-            println(e.getMessage());
-            return false;
-        } finally {
-            if (connection != null) connection.disconnect();
+        }, "Error completing multipart upload", false), false);
+    }
+
+    /**
+     * Zips a directory straight into the body of a PUT request, so the upload starts while
+     * compression is still running and the archive never touches disk.
+     * @param directory directory to zip, e.g. an iOS .app bundle
+     * @param zipper packaging settings
+     * @param urlString pre-signed upload URL
+     * @param chunked true to send with chunked transfer encoding, false to zip once up front
+     *                to compute a Content-Length and then stream a second pass
+     * @return true on success
+     */
+    public boolean uploadZip(final FilePath directory, final AppetizeZipper zipper, final String urlString, boolean chunked) {
+        long length = -1;
+        if (!chunked) {
+            long start = System.currentTimeMillis();
+            try {
+                CountingOutputStream counter = new CountingOutputStream(new NullOutputStream());
+                zipper.zip(directory, counter);
+                length = counter.getByteCount();
+            } catch (Exception e) {
+                println("Error uploading to " + urlString);
+                println(e.getMessage());
+                return false;
+            } finally {
+                timings.add(AppetizeTimings.Phase.PACKAGING, System.currentTimeMillis() - start);
+            }
         }
+
+        final long contentLength = length;
+        return await(call(new Call<Boolean>() {
+            AppetizeTransport.Request createRequest() throws IOException {
+                AppetizeTransport.Request request = createUpload(urlString);
+                request.setBody(new AppetizeTransport.StreamBody() {
+                    public long writeTo(OutputStream out) throws IOException, InterruptedException {
+                        CountingOutputStream counter = new CountingOutputStream(out);
+                        zipper.zip(directory, counter);
+                        return counter.getByteCount();
+                    }
+                }, contentLength, true);
+                return request;
+            }
+
+            Boolean handle(AppetizeTransport.Response response) throws IOException {
+                return uploaded(response);
+            }
+        }, "Error uploading to " + urlString, false), false);
     }
 
+    /**
+     * Creates or updates the job's app. Repeating the same update is harmless, since it is keyed
+     * by the job, build number and upload URL, so it is retried like the other requests.
+     */
     public AppetizeUpdateResult updateApp(AppetizeUpdateParams params) {
+        return await(updateAppAsync(params), null);
+    }
 
-        HttpURLConnection connection = null;
-        try {
-            URL url = new URL(UPDATE_URL);
-            connection = getConnection(url);
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-
-            // upload json
-            String json = gson.toJson(params);
-            OutputStream out = connection.getOutputStream();
-            OutputStreamWriter writer = new OutputStreamWriter(out);
-            writer.write(json);
-            writer.flush();
-            writer.close();
-
-            // get response
-            int status = connection.getResponseCode();
-            if (status >= 200 && status <= 299) {
-                InputStreamReader reader = new InputStreamReader(connection.getInputStream());
-                return gson.fromJson(reader, AppetizeUpdateResult.class);
-            } else {
-                String errorMessage = readToString(connection.getErrorStream());
-                throw new Exception("Status " + status + ": " + errorMessage);
+    /**
+     * @see #updateApp
+     * @return future of the result, or of null on failure
+     */
+    public AppetizeFuture<AppetizeUpdateResult> updateAppAsync(AppetizeUpdateParams params) {
+        final String json = AppetizeJson.GSON.toJson(params);
+        return call(new Call<AppetizeUpdateResult>() {
+            AppetizeTransport.Request createRequest() throws IOException {
+                AppetizeTransport.Request request = new AppetizeTransport.Request("POST", new URL(apiUrl + UPDATE_PATH));
+                request.setHeader("Content-Type", "application/json");
+                request.setBody(json.getBytes("UTF-8"));
+                return request;
             }
-        } catch (Exception e) {
-            println("Error calling Appetize.io API");
-            println(e.getMessage());
-            return null;
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
+
+            AppetizeUpdateResult handle(AppetizeTransport.Response response) throws IOException {
+                if (!response.isSuccessful()) throw new StatusException(response, response.getBody());
+                return AppetizeJson.GSON.fromJson(response.getBody(), AppetizeUpdateResult.class);
             }
+        }, "Error calling Appetize.io API", null);
+    }
+
+    /**
+     * @return a PUT to an upload URL, throttled and abandoned on supersession like every upload
+     */
+    private AppetizeTransport.Request createUpload(String urlString) throws IOException {
+        AppetizeTransport.Request request = new AppetizeTransport.Request("PUT", new URL(urlString));
+        request.setUploadFilter(uploadFilter);
+        request.setSupersession(supersession);
+        return request;
+    }
+
+    private final AppetizeTransport.UploadFilter uploadFilter = new AppetizeTransport.UploadFilter() {
+        public OutputStream filter(OutputStream out) {
+            if (bandwidthLimiter != null) out = bandwidthLimiter.wrap(out);
+            if (supersession != null) out = new SupersessionOutputStream(out, supersession);
+            return out;
+        }
+    };
+
+    /**
+     * Abandons an upload as soon as a newer build claims the app
+     */
+    private static class SupersessionOutputStream extends FilterOutputStream {
+        private final AppetizeSupersession.Ticket supersession;
+
+        SupersessionOutputStream(OutputStream out, AppetizeSupersession.Ticket supersession) {
+            super(out);
+            this.supersession = supersession;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            supersession.check();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            supersession.check();
+            out.write(b, off, len);
         }
     }
 
-    void println(String message) {
-        if (this.logger != null) logger.println(message);
+    private boolean isThrottled() {
+        return bandwidthLimiter != null && bandwidthLimiter.getBytesPerSecond() > 0;
+    }
+
+    /**
+     * @return the transport for a request. Streamed bodies and throttled uploads need a thread
+     * to write them, and the non-blocking client can't connect through a SOCKS proxy, so these
+     * always go through the blocking transport.
+     */
+    private AppetizeTransport getTransport(AppetizeTransport.Request request) {
+        if (request.isStreamed() || (request.getUploadFilter() != null && isThrottled())
+                || (transport.isAsynchronous() && AppetizeHttpClient.get().isSocksProxied(request.getUrl(), proxy))) {
+            return AppetizeUrlConnectionTransport.get();
+        }
+        return transport;
     }
 
-    String readToString(InputStream is) {
-        if (is == null) return null;
+    private <T> AppetizeFuture<T> call(Call<T> call, String error, T failed) {
+        return call(call, retryPolicy.getMaxAttempts(), error, failed);
+    }
 
-        InputStreamReader reader = new InputStreamReader(is);
-        StringWriter writer = new StringWriter();
-        char[] buf = new char[1024];
+    /**
+     * Sends a request, retrying it as needed, and logs the error if it fails for good.
+     * @param failed value to complete with on failure
+     */
+    private <T> AppetizeFuture<T> call(Call<T> call, int maxAttempts, final String error, final T failed) {
+        AppetizeFuture<T> attempts = new AppetizeFuture<T>();
         try {
-            while (reader.read(buf) > 0) {
-                writer.write(buf);
+            attempt(call.createRequest(), call, 1, maxAttempts, attempts);
+        } catch (Exception e) {
+            attempts.fail(e);
+        }
+
+        final AppetizeFuture<T> result = new AppetizeFuture<T>();
+        attempts.addListener(new AppetizeFuture.Listener<T>() {
+            public void onSuccess(T value) {
+                result.complete(value);
             }
-            is.close();
 
-            return writer.toString();
+            public void onFailure(Throwable failure) {
+                println(error);
+                println(failure.getMessage());
+                result.complete(failed);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sends one attempt at a request, and on connection failures and retryable statuses schedules
+     * the next one with exponential backoff. Fails fast without a request while the circuit
+     * breaker for the host is open. Only the blocking transport holds a thread for the delay.
+     */
+    private <T> void attempt(final AppetizeTransport.Request request, final Call<T> call, final int attempt,
+                             final int maxAttempts, final AppetizeFuture<T> result) {
+        final String host = request.getUrl().getHost();
+        final AppetizeCircuitBreaker breaker = AppetizeCircuitBreaker.forHost(host);
+        final AppetizeTransport transport = getTransport(request);
+        try {
+            if (supersession != null) supersession.check();
+            breaker.checkClosed();
         } catch (IOException e) {
-            return null;
+            result.fail(e);
+            return;
+        }
+
+        AppetizeFuture<AppetizeTransport.Response> sent;
+        try {
+            sent = transport.send(request, proxy, retryPolicy);
+        } catch (RuntimeException e) {
+            breaker.probeAborted();
+            result.fail(e);
+            return;
+        }
+        sent.addListener(new AppetizeFuture.Listener<AppetizeTransport.Response>() {
+            public void onSuccess(AppetizeTransport.Response response) {
+                try {
+                    T value = call.handle(response);
+                    breaker.recordSuccess();
+                    result.complete(value);
+                } catch (StatusException e) {
+                    if (!e.isRetryable()) {
+                        // the server is up and answering
+                        breaker.recordSuccess();
+                        result.fail(e);
+                        return;
+                    }
+                    breaker.recordFailure();
+                    retry(e, e.retryAfterMillis);
+                } catch (IOException e) {
+                    breaker.recordFailure();
+                    retry(e, 0);
+                } catch (RuntimeException e) {
+                    // an answer we can't parse, such as a proxy's error page, which a retry won't fix
+                    breaker.probeAborted();
+                    result.fail(e);
+                }
+            }
+
+            public void onFailure(Throwable failure) {
+                if (failure instanceof AppetizeSupersession.SupersededException || !(failure instanceof IOException)) {
+                    // abandoned by us or interrupted, not a failure of the host
+                    breaker.probeAborted();
+                    result.fail(failure);
+                    return;
+                }
+                breaker.recordFailure();
+                retry(failure, 0);
+            }
+
+            private void retry(Throwable failure, long retryAfterMillis) {
+                if (attempt >= maxAttempts) {
+                    result.fail(failure);
+                    return;
+                }
+                println("Request to " + host + " failed: " + failure.getMessage());
+                long delay = retryPolicy.getDelayMillis(attempt, retryAfterMillis);
+                timings.addRetry();
+                println("Retrying in " + (delay / 1000) + "s (attempt " + (attempt + 1) + " of " + maxAttempts + ")");
+
+                Runnable next = new Runnable() {
+                    public void run() {
+                        attempt(request, call, attempt + 1, maxAttempts, result);
+                    }
+                };
+                if (transport.isAsynchronous()) {
+                    retryTimer.schedule(next, delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result.fail(e);
+                    return;
+                }
+                next.run();
+            }
+        });
+    }
+
+    /**
+     * Waits on the calling thread for a request that never fails, since failures complete it
+     * with a value.
+     */
+    private <T> T await(AppetizeFuture<T> future, T failed) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            println("Interrupted waiting for Appetize.io");
+            return failed;
+        } catch (ExecutionException e) {
+            return failed;
+        }
+    }
+
+    /**
+     * Parses a Retry-After header, given either in seconds or as an HTTP date.
+     * @return delay in milliseconds, or 0 if there is no valid header
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null) return 0;
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                return Math.max(0, format.parse(value).getTime() - System.currentTimeMillis());
+            } catch (ParseException e2) {
+                return 0;
+            }
         }
     }
 
-    private static void copy(InputStream in, OutputStream out) throws IOException{
-        byte[] buf = new byte[1024 * 10];
+    void println(String message) {
+        if (this.logger != null) logger.println(message);
+    }
+
+    private static long copy(InputStream in, OutputStream out) throws IOException{
+        return copy(in, out, new byte[COPY_BUFFER_SIZE]);
+    }
+
+    /**
+     * Copies a stream to its end through the given buffer.
+     * @return number of bytes copied
+     */
+    static long copy(InputStream in, OutputStream out, byte[] buf) throws IOException {
+        long count = 0;
         int len;
         while ((len = in.read(buf)) > 0) {
             out.write(buf, 0, len);
+            count += len;
         }
+        return count;
     }
 
     /**
-     * Returns an HttpURLConnection using the Jenkins global proxy if set
-     * @param url URL to open the connection
-     * @return Instanciated connection
-     * @throws IOException
+     * Copies exactly the given number of bytes.
      */
-    private HttpURLConnection getConnection(URL url) throws IOException {
-
-        HttpURLConnection connection;
-        ProxyConfiguration proxyConfig = Jenkins.getInstance().proxy;
-        if (proxyConfig != null) {
-            Proxy proxy = proxyConfig.createProxy(url.getHost());
-            if (proxy != null && proxy.type() == Proxy.Type.HTTP) {
-                connection = (HttpURLConnection)url.openConnection(proxy);
-            }
-            else {
-                connection = (HttpURLConnection)url.openConnection();
-            }
-        }
-        else {
-            connection = (HttpURLConnection)url.openConnection();
+    static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buf = new byte[COPY_BUFFER_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int len = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+            if (len < 0) throw new EOFException();
+            out.write(buf, 0, len);
+            remaining -= len;
         }
+    }
 
-        return connection;
+    /**
+     * Returns the proxy the Jenkins global configuration would use for a URL, so that it can be
+     * handed to code running on a slave.
+     * @param urlString URL to be requested
+     * @return proxy to use, or null to use the JVM proxy settings
+     * @throws IOException
+     */
+    public static Proxy resolveProxy(String urlString) throws IOException {
+        return AppetizeHttpClient.get().getProxy(new URL(urlString).getHost());
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.FileSet;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An app to publish: a platform and a path in the workspace, which may be an Ant-style pattern
+ * matching several apps, e.g. <tt>app/build/outputs/apk/&#42;&#42;/&#42;.apk</tt>.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeArtifact implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String platform;
+    private final String appPath;
+
+    @DataBoundConstructor
+    public AppetizeArtifact(String platform, String appPath) {
+        this.platform = platform;
+        this.appPath = appPath;
+    }
+
+    public String getPlatform() {
+        return platform;
+    }
+
+    public String getAppPath() {
+        return appPath;
+    }
+
+    /**
+     * @return true if the path is a pattern rather than the path of a single app
+     */
+    public boolean isPattern() {
+        return appPath != null && (appPath.contains("*") || appPath.contains("?") || appPath.contains(","));
+    }
+
+    /**
+     * @return the apps matching this artifact's pattern, in path order
+     */
+    public List<AppetizeArtifact> expand(FilePath workspace) throws IOException, InterruptedException {
+        List<AppetizeArtifact> artifacts = new ArrayList<AppetizeArtifact>();
+        for (String path : workspace.act(new Scanner(platform, appPath))) {
+            artifacts.add(new AppetizeArtifact(platform, path));
+        }
+        return artifacts;
+    }
+
+    /**
+     * Lists .app directories for iOS, since those are what gets zipped, or files for Android.
+     */
+    private static class Scanner implements FilePath.FileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String platform;
+        private final String pattern;
+
+        Scanner(String platform, String pattern) {
+            this.platform = platform;
+            this.pattern = pattern;
+        }
+
+        public List<String> invoke(File workspace, VirtualChannel channel) throws IOException {
+            List<String> paths = new ArrayList<String>();
+            if (!workspace.isDirectory()) return paths;
+
+            FileSet fileSet = Util.createFileSet(workspace, pattern);
+            DirectoryScanner scanner = fileSet.getDirectoryScanner();
+            boolean ios = platform.equalsIgnoreCase("ios");
+            String[] matches = ios ? scanner.getIncludedDirectories() : scanner.getIncludedFiles();
+            Arrays.sort(matches);
+            for (String match : matches) {
+                String path = match.replace(File.separatorChar, '/');
+                if (ios && (!path.endsWith(".app") || isEmbedded(path, paths))) continue;
+                paths.add(path);
+            }
+            return paths;
+        }
+
+        /**
+         * @return true if an app is inside one of the others, e.g. a watch app
+         */
+        private static boolean isEmbedded(String path, List<String> apps) {
+            for (String app : apps) {
+                if (path.startsWith(app + "/")) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.FileContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends requests without holding the calling thread, on a shared non-blocking client whose
+ * few I/O threads serve every in-flight request of every build. File bodies go from the file
+ * channel to the socket without being copied through the heap where the connection allows it.
+ * Streamed bodies are not supported, since producing them would block the I/O threads, and
+ * neither are SOCKS proxies; {@link AppetizeApiService} sends those through the blocking transport.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public final class AppetizeAsyncTransport implements AppetizeTransport {
+    private static final AppetizeAsyncTransport INSTANCE = new AppetizeAsyncTransport();
+    // parts of a multipart upload all go to the same host
+    private static final int MAX_CONNECTIONS = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CloseableHttpAsyncClient client;
+
+    private AppetizeAsyncTransport() {
+    }
+
+    public static AppetizeAsyncTransport get() {
+        return INSTANCE;
+    }
+
+    public boolean isAsynchronous() {
+        return true;
+    }
+
+    /**
+     * @return the shared client, started on first use
+     */
+    private synchronized CloseableHttpAsyncClient getClient() {
+        if (client == null || !client.isRunning()) {
+            client = HttpAsyncClients.custom()
+                    .setMaxConnTotal(MAX_CONNECTIONS)
+                    .setMaxConnPerRoute(MAX_CONNECTIONS)
+                    .setThreadFactory(new NamingThreadFactory(new DaemonThreadFactory(), "Appetize.io HTTP I/O"))
+                    // without a Jenkins proxy, route like HttpURLConnection does with the JVM settings
+                    .setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()))
+                    .build();
+            client.start();
+        }
+        return client;
+    }
+
+    public AppetizeFuture<Response> send(final Request request, Proxy proxy, AppetizeRetryPolicy retryPolicy) {
+        final AppetizeFuture<Response> result = new AppetizeFuture<Response>();
+        if (request.isStreamed()) {
+            result.fail(new IllegalArgumentException("Streamed bodies must be sent with a blocking transport"));
+            return result;
+        }
+
+        try {
+            URL url = request.getUrl();
+            if (proxy == null) proxy = AppetizeHttpClient.get().getProxy(url.getHost());
+            RequestConfig.Builder config = RequestConfig.custom()
+                    .setConnectTimeout(retryPolicy.getConnectTimeoutMillis())
+                    .setSocketTimeout(retryPolicy.getReadTimeoutMillis());
+            if (proxy != null && proxy.type() == Proxy.Type.SOCKS) {
+                throw new IllegalArgumentException("SOCKS proxies must be used with a blocking transport");
+            }
+            if (proxy != null && proxy.type() == Proxy.Type.HTTP) {
+                InetSocketAddress address = (InetSocketAddress)proxy.address();
+                config.setProxy(new HttpHost(address.getHostName(), address.getPort()));
+            }
+
+            RequestBuilder builder = RequestBuilder.create(request.getMethod())
+                    .setUri(url.toURI())
+                    .setConfig(config.build());
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                builder.setHeader(header.getKey(), header.getValue());
+            }
+            final FileRegionEntity region = request.getFile() == null ? null
+                    : new FileRegionEntity(request.getFile(), request.getOffset(), request.getLength(),
+                            request.getSupersession());
+            if (request.getBytes() != null) {
+                builder.setEntity(new NByteArrayEntity(request.getBytes()));
+            } else if (region != null) {
+                builder.setEntity(region);
+            }
+
+            getClient().execute(builder.build(), new FutureCallback<HttpResponse>() {
+                public void completed(HttpResponse response) {
+                    closeQuietly(region);
+                    try {
+                        result.complete(toResponse(response, request.getLength()));
+                    } catch (IOException e) {
+                        result.fail(e);
+                    }
+                }
+
+                public void failed(Exception e) {
+                    closeQuietly(region);
+                    result.fail(e);
+                }
+
+                public void cancelled() {
+                    closeQuietly(region);
+                    result.fail(new IOException("Request to " + request.getUrl().getHost() + " was cancelled"));
+                }
+            });
+        } catch (Exception e) {
+            result.fail(e);
+        }
+        return result;
+    }
+
+    /**
+     * Closes the file of a body whether or not it was sent completely, since the client only
+     * closes it when it releases the exchange
+     */
+    private static void closeQuietly(FileRegionEntity region) {
+        if (region == null) return;
+        try {
+            region.close();
+        } catch (IOException e) {
+            // nothing left to send from it
+        }
+    }
+
+    private static Response toResponse(HttpResponse response, long bytesSent) throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Header header : response.getAllHeaders()) {
+            headers.put(header.getName(), header.getValue());
+        }
+        HttpEntity entity = response.getEntity();
+        String body = entity == null ? null : EntityUtils.toString(entity, "UTF-8");
+        return new Response(response.getStatusLine().getStatusCode(), headers, body, Math.max(0, bytesSent));
+    }
+
+    /**
+     * A region of a file, transferred from its channel straight to the connection where the
+     * encoder allows it and read through a small buffer otherwise. The channel is opened on the
+     * first write and closed once the region is sent, and by the client or the callback when the
+     * request fails, is cancelled or is retried.
+     */
+    private static class FileRegionEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+        private final File file;
+        private final long offset;
+        private final long length;
+        private final AppetizeSupersession.Ticket supersession;
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private long position;
+
+        FileRegionEntity(File file, long offset, long length, AppetizeSupersession.Ticket supersession) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.supersession = supersession;
+        }
+
+        public synchronized void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+            // abandons the upload mid-transfer, like the upload filter of the blocking transport
+            if (supersession != null) supersession.check();
+            if (channel == null) {
+                channel = new RandomAccessFile(file, "r").getChannel();
+                position = offset;
+            }
+
+            long remaining = offset + length - position;
+            long written;
+            if (encoder instanceof FileContentEncoder) {
+                written = ((FileContentEncoder)encoder).transfer(channel, position, remaining);
+            } else {
+                if (buffer == null) buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), remaining));
+                if (channel.read(buffer, position) < 0) throw new EOFException("Unexpected end of " + file);
+                buffer.flip();
+                // whatever the encoder could not take is read again next time
+                written = encoder.write(buffer);
+            }
+            position += written;
+
+            if (position >= offset + length) {
+                encoder.complete();
+                close();
+            }
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public long getContentLength() {
+            return length;
+        }
+
+        /**
+         * @return a new stream over the region, which the caller must close
+         */
+        public InputStream getContent() throws IOException {
+            FileChannel region = new RandomAccessFile(file, "r").getChannel();
+            region.position(offset);
+            return new RegionInputStream(Channels.newInputStream(region), length);
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            try {
+                AppetizeApiService.copy(in, out, length);
+            } finally {
+                in.close();
+            }
+        }
+
+        public boolean isStreaming() {
+            return false;
+        }
+
+        /**
+         * Closes the channel, after which the next write starts the region over
+         */
+        public synchronized void close() throws IOException {
+            if (channel != null) {
+                FileChannel toClose = channel;
+                channel = null;
+                toClose.close();
+            }
+        }
+    }
+
+    /**
+     * Ends a stream at the end of a region of the file it reads
+     */
+    private static class RegionInputStream extends FilterInputStream {
+        private long remaining;
+
+        RegionInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = super.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int read = super.read(b, off, (int)Math.min(len, remaining));
+            if (read > 0) remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int)Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket shared by every upload it wraps, capping their combined bandwidth. Writes are
+ * let through in small chunks and each chunk waits its turn, so concurrent uploads get about
+ * the same share of the bandwidth.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeBandwidthLimiter {
+    // largest write let through at once, so that no upload holds the bucket for long
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile long bytesPerSecond;
+    // tokens in bytes, negative when uploads are waiting on a deficit
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond combined bandwidth, 0 for no limit
+     */
+    public AppetizeBandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        tokens = 0;
+        refilledAt = System.nanoTime();
+    }
+
+    public boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    /**
+     * Waits until the bytes may be sent.
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        long waitNanos = reserve(bytes);
+        if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    /**
+     * Takes tokens for the bytes, going into debt if there aren't enough.
+     * @return nanoseconds to wait until the debt is paid off
+     */
+    private synchronized long reserve(int bytes) {
+        long rate = bytesPerSecond;
+        if (rate <= 0) return 0;
+
+        long now = System.nanoTime();
+        // allow a burst of up to a second's worth after an idle period
+        tokens = Math.min(rate, tokens + (double)(now - refilledAt) * rate / NANOS_PER_SECOND);
+        refilledAt = now;
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long)(-tokens * NANOS_PER_SECOND / rate);
+    }
+
+    /**
+     * @return the stream, throttled if there is a limit
+     */
+    public OutputStream wrap(OutputStream out) {
+        return isLimited() ? new ThrottledOutputStream(out, this) : out;
+    }
+
+    private static class ThrottledOutputStream extends FilterOutputStream {
+        private final AppetizeBandwidthLimiter limiter;
+
+        ThrottledOutputStream(OutputStream out, AppetizeBandwidthLimiter limiter) {
+            super(out);
+            this.limiter = limiter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acquire(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunk = Math.min(len, CHUNK_SIZE);
+                acquire(chunk);
+                out.write(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        private void acquire(int bytes) throws IOException {
+            try {
+                limiter.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+            }
+        }
+    }
+}
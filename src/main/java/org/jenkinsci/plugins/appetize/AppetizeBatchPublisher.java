@@ -0,0 +1,120 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Publishes several apps of a build at the same time over a bounded pool of threads. Each app
+ * logs to its own buffer, which is copied to the build log in one piece when the app is done,
+ * so the output of concurrent uploads doesn't interleave.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeBatchPublisher {
+    private final AppetizeRecorder.DescriptorImpl descriptor;
+    private final AbstractBuild<?, ?> build;
+    private final PrintStream logger;
+
+    public AppetizeBatchPublisher(AppetizeRecorder.DescriptorImpl descriptor, AbstractBuild<?, ?> build, TaskListener listener) {
+        this.descriptor = descriptor;
+        this.build = build;
+        this.logger = listener.getLogger();
+    }
+
+    /**
+     * @param artifacts apps to publish, numbered from 1 in this order
+     * @return the action for each app in the same order, null for the apps that failed
+     */
+    public List<AppetizeBuildAction> publish(List<AppetizeArtifact> artifacts, final String apiTokenId)
+            throws InterruptedException {
+        int threads = Math.min(descriptor.getArtifactParallelism(), artifacts.size());
+        logger.println("Publishing " + artifacts.size() + " apps to Appetize.io, " + threads + " at a time");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new NamingThreadFactory(new DaemonThreadFactory(), "Appetize.io publish " + build.getFullDisplayName()));
+        try {
+            List<Future<AppetizeBuildAction>> futures = new ArrayList<Future<AppetizeBuildAction>>(artifacts.size());
+            for (int i = 0; i < artifacts.size(); i++) {
+                final AppetizeArtifact artifact = artifacts.get(i);
+                final int index = i + 1;
+                futures.add(executor.submit(new Callable<AppetizeBuildAction>() {
+                    public AppetizeBuildAction call() throws InterruptedException {
+                        return publish(artifact, apiTokenId, index);
+                    }
+                }));
+            }
+
+            List<AppetizeBuildAction> actions = new ArrayList<AppetizeBuildAction>(artifacts.size());
+            for (Future<AppetizeBuildAction> future : futures) {
+                try {
+                    actions.add(future.get());
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(logger);
+                    actions.add(null);
+                }
+            }
+            return actions;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private AppetizeBuildAction publish(AppetizeArtifact artifact, String apiTokenId, int index)
+            throws InterruptedException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        StreamTaskListener listener = new StreamTaskListener(log);
+        AppetizeBuildAction action = null;
+        try {
+            action = new AppetizePublisher(descriptor, build, listener)
+                    .publish(artifact.getPlatform(), artifact.getAppPath(), apiTokenId, index);
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Error publishing " + artifact.getAppPath()));
+        } finally {
+            listener.getLogger().flush();
+            synchronized (logger) {
+                logger.println("[" + index + "] " + artifact.getAppPath() + (action != null ? "" : " (failed)"));
+                byte[] bytes = log.toByteArray();
+                logger.write(bytes, 0, bytes.length);
+            }
+        }
+        return action;
+    }
+}
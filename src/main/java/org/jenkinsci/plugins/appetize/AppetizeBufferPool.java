@@ -0,0 +1,94 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Hands out fixed-size direct buffers for packaging apps in memory, up to a total size shared by
+ * every upload in this JVM. Buffers are kept and reused once released, so small apps can be
+ * zipped and uploaded again and again without allocating or touching the Java heap.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeBufferPool {
+    public static final int DEFAULT_MAX_MB = 64;
+    public static final int CHUNK_SIZE = 512 * 1024;
+
+    private static final AppetizeBufferPool INSTANCE = new AppetizeBufferPool();
+
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+    private long maxBytes = DEFAULT_MAX_MB * 1024L * 1024L;
+    // bytes in buffers that have been allocated and not dropped, in use or free
+    private long allocated;
+
+    private AppetizeBufferPool() {
+    }
+
+    public static AppetizeBufferPool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param maxBytes total size of the buffers kept by the pool
+     */
+    public synchronized void configure(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        // a lower limit takes effect as buffers come back
+        while (allocated > this.maxBytes && !free.isEmpty()) {
+            free.removeFirst();
+            allocated -= CHUNK_SIZE;
+        }
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return an empty buffer of {@link #CHUNK_SIZE} bytes, or null if the pool is used up
+     */
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = free.pollFirst();
+        if (buffer != null) return buffer;
+        if (allocated + CHUNK_SIZE > maxBytes) return null;
+        allocated += CHUNK_SIZE;
+        return ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+
+    /**
+     * Returns a buffer from {@link #acquire} to the pool.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (allocated > maxBytes) {
+            // left over from before the limit was lowered
+            allocated -= CHUNK_SIZE;
+            return;
+        }
+        buffer.clear();
+        free.addFirst(buffer);
+    }
+}
@@ -33,19 +33,48 @@ import hudson.model.EnvironmentContributingAction;
  */
 public class AppetizeBuildAction extends AppetizeApp implements EnvironmentContributingAction {
     private int buildNumber;
+    // set when a build publishes several apps
+    private String appPath;
+    private int index;
+    // where the time of the publish went, null for builds published before it was recorded
+    private AppetizeTimings timings;
+    // number of the newer build that made this one give up publishing, 0 if it published
+    private int supersededBy;
 
     public AppetizeBuildAction(String platform, String privateKey, String publicKey, String publicUrl, String manageUrl, int buildNumber) {
+        this(platform, privateKey, publicKey, publicUrl, manageUrl, buildNumber, null, 0);
+    }
+
+    /**
+     * @param appPath path of the app in the workspace, shown when a build publishes several apps
+     * @param index position from 1 among several apps published by a build, or 0 if it's the only one
+     */
+    public AppetizeBuildAction(String platform, String privateKey, String publicKey, String publicUrl, String manageUrl,
+                               int buildNumber, String appPath, int index) {
         super(platform, privateKey, publicKey, publicUrl, manageUrl);
         this.buildNumber = buildNumber;
+        this.appPath = appPath;
+        this.index = index;
     }
 
     public void buildEnvVars(AbstractBuild<?, ?> abstractBuild, EnvVars envVars) {
-        if (envVars == null) return;
+        if (envVars == null || isSuperseded()) return;
 
-        envVars.put("APPETIZEIO_PUBLIC_KEY", getPublicKey());
-        envVars.put("APPETIZEIO_PRIVATE_KEY", getPrivateKey());
-        envVars.put("APPETIZEIO_PUBLIC_URL", getPublicUrl());
-        envVars.put("APPETIZEIO_MANAGE_URL", getManageUrl());
+        // the first of several apps is also available without a suffix
+        if (index <= 1) {
+            putEnvVars(envVars, "");
+        }
+        if (index >= 1) {
+            putEnvVars(envVars, "_" + index);
+            envVars.put("APPETIZEIO_APP_PATH_" + index, appPath);
+        }
+    }
+
+    private void putEnvVars(EnvVars envVars, String suffix) {
+        envVars.put("APPETIZEIO_PUBLIC_KEY" + suffix, getPublicKey());
+        envVars.put("APPETIZEIO_PRIVATE_KEY" + suffix, getPrivateKey());
+        envVars.put("APPETIZEIO_PUBLIC_URL" + suffix, getPublicUrl());
+        envVars.put("APPETIZEIO_MANAGE_URL" + suffix, getManageUrl());
     }
 
     @Override
@@ -67,4 +96,38 @@ public class AppetizeBuildAction extends AppetizeApp implements EnvironmentContr
     public int getBuildNumber() {
         return buildNumber;
     }
+
+    /**
+     * @return path of the app if the build published several, otherwise null
+     */
+    public String getAppPath() {
+        return appPath;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public AppetizeTimings getTimings() {
+        return timings;
+    }
+
+    public void setTimings(AppetizeTimings timings) {
+        this.timings = timings;
+    }
+
+    /**
+     * @return true if a newer build of the job published instead, leaving this one without an app
+     */
+    public boolean isSuperseded() {
+        return supersededBy > 0;
+    }
+
+    public int getSupersededBy() {
+        return supersededBy;
+    }
+
+    public void setSupersededBy(int supersededBy) {
+        this.supersededBy = supersededBy;
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which parts of an iOS .app bundle are left out of the upload, such as debug symbols
+ * and test bundles that the simulator never loads. Excluded files and directories are skipped
+ * while walking the bundle, so they are never read, hashed or compressed.
+ *
+ * Rules are globs matched against paths inside the bundle: * and ? stay within a path segment,
+ * ** crosses segments, a rule ending in / matches only directories, and a rule without any
+ * other / matches a name at any depth. Include rules win over exclude rules; an excluded
+ * directory is skipped with everything in it.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeBundleFilter implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String DEFAULT_KEPT_LOCALIZATIONS = "Base en";
+
+    /**
+     * Built-in exclude rules for content an iOS simulator build doesn't need at runtime
+     */
+    public enum Preset {
+        DSYM("dsym", "*.dSYM/"),
+        SWIFTMODULE("swiftmodule", "*.swiftmodule/", "*.swiftmodule", "*.swiftdoc", "*.swiftinterface",
+                "*.swiftsourceinfo"),
+        BCSYMBOLMAP("bcsymbolmap", "*.bcsymbolmap"),
+        XCTEST("xctest", "*.xctest/"),
+        // *.lproj/ other than the kept localizations, see isExcluded
+        LOCALIZATIONS("localizations");
+
+        private final String id;
+        private final String[] rules;
+
+        Preset(String id, String... rules) {
+            this.id = id;
+            this.rules = rules;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the preset with this id, case insensitively, or null
+         */
+        public static Preset forId(String id) {
+            for (Preset preset : values()) {
+                if (preset.id.equalsIgnoreCase(id)) return preset;
+            }
+            return null;
+        }
+    }
+
+    private final List<Rule> excludes = new ArrayList<Rule>();
+    private final List<Rule> includes = new ArrayList<Rule>();
+    private final boolean excludeLocalizations;
+    private final Set<String> keptLocalizations = new HashSet<String>();
+
+    /**
+     * @param presets ids of the presets to apply, separated by spaces or commas
+     * @param excludes exclude rules, one per line
+     * @param includes include rules, one per line
+     * @param keptLocalizations names of the .lproj directories kept by the localizations preset,
+     *                          separated by spaces or commas
+     * @throws IllegalArgumentException for an unknown preset
+     */
+    public AppetizeBundleFilter(String presets, String excludes, String includes, String keptLocalizations) {
+        Set<Preset> enabled = parsePresets(presets);
+        for (Preset preset : enabled) {
+            for (String rule : preset.rules) {
+                this.excludes.add(new Rule(rule));
+            }
+        }
+        parseRules(excludes, this.excludes);
+        parseRules(includes, this.includes);
+        this.excludeLocalizations = enabled.contains(Preset.LOCALIZATIONS);
+        if (keptLocalizations != null) {
+            for (String name : keptLocalizations.split("[\\s,]+")) {
+                name = name.replaceFirst("\\.lproj$", "").toLowerCase(Locale.ENGLISH);
+                if (!name.isEmpty()) this.keptLocalizations.add(name);
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException for an unknown preset
+     */
+    static Set<Preset> parsePresets(String presets) {
+        Set<Preset> result = EnumSet.noneOf(Preset.class);
+        if (presets == null) return result;
+        for (String id : presets.split("[\\s,]+")) {
+            if (id.isEmpty()) continue;
+            Preset preset = Preset.forId(id);
+            if (preset == null) throw new IllegalArgumentException("Unknown slimming preset: " + id);
+            result.add(preset);
+        }
+        return result;
+    }
+
+    private static void parseRules(String rules, List<Rule> result) {
+        if (rules == null) return;
+        for (String line : rules.split("\\r?\\n")) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) result.add(new Rule(line));
+        }
+    }
+
+    /**
+     * @return true if nothing is ever excluded
+     */
+    public boolean isEmpty() {
+        return excludes.isEmpty() && !excludeLocalizations;
+    }
+
+    /**
+     * @param path path inside the bundle, without a leading or trailing slash
+     */
+    public boolean isExcluded(String path, boolean directory) {
+        if (!matchesAny(excludes, path, directory) && !isUnusedLocalization(path, directory)) return false;
+        return !matchesAny(includes, path, directory);
+    }
+
+    private boolean isUnusedLocalization(String path, boolean directory) {
+        if (!excludeLocalizations || !directory) return false;
+        String name = path.substring(path.lastIndexOf('/') + 1).toLowerCase(Locale.ENGLISH);
+        return name.endsWith(".lproj") && !keptLocalizations.contains(name.substring(0, name.length() - ".lproj".length()));
+    }
+
+    private static boolean matchesAny(List<Rule> rules, String path, boolean directory) {
+        for (Rule rule : rules) {
+            if (rule.matches(path, directory)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * A single glob, compiled to a regular expression
+     */
+    private static class Rule implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Pattern pattern;
+        private final boolean directoryOnly;
+
+        Rule(String glob) {
+            directoryOnly = glob.endsWith("/");
+            while (glob.endsWith("/")) glob = glob.substring(0, glob.length() - 1);
+            boolean anchored = glob.contains("/");
+            while (glob.startsWith("/")) glob = glob.substring(1);
+
+            StringBuilder regex = new StringBuilder(anchored ? "" : "(?:.*/)?");
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        i++;
+                        regex.append("(?:.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            // bundles are usually built on case-insensitive file systems
+            pattern = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+        }
+
+        boolean matches(String path, boolean directory) {
+            return (directory || !directoryOnly) && pattern.matcher(path).matches();
+        }
+    }
+}
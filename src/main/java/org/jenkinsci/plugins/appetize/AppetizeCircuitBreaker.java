@@ -0,0 +1,105 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops sending requests to a host after repeated failures, so that builds fail fast while
+ * Appetize.io or S3 is down instead of each one waiting out its timeouts and retries. After a
+ * cool-down period a single request is let through to check whether the host has recovered.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeCircuitBreaker {
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_MILLIS = 30 * 1000;
+
+    private static final Map<String, AppetizeCircuitBreaker> breakers = new HashMap<String, AppetizeCircuitBreaker>();
+
+    private final String host;
+    private final long openMillis;
+    private int consecutiveFailures;
+    private long openUntil;
+    private boolean probing;
+
+    private AppetizeCircuitBreaker(String host) {
+        this(host, OPEN_MILLIS);
+    }
+
+    /**
+     * @param openMillis how long requests are refused before one is let through to test the host
+     */
+    AppetizeCircuitBreaker(String host, long openMillis) {
+        this.host = host;
+        this.openMillis = openMillis;
+    }
+
+    public static synchronized AppetizeCircuitBreaker forHost(String host) {
+        AppetizeCircuitBreaker breaker = breakers.get(host);
+        if (breaker == null) {
+            breaker = new AppetizeCircuitBreaker(host);
+            breakers.put(host, breaker);
+        }
+        return breaker;
+    }
+
+    /**
+     * @throws IOException if requests to the host are currently being refused
+     */
+    public synchronized void checkClosed() throws IOException {
+        if (consecutiveFailures < FAILURE_THRESHOLD) return;
+
+        if (System.currentTimeMillis() < openUntil || probing) {
+            throw new IOException(host + " is unavailable after " + consecutiveFailures +
+                    " consecutive failures, not sending request");
+        }
+        // let one request through to test the host
+        probing = true;
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        probing = false;
+    }
+
+    /**
+     * Ends a request that neither reached the host nor failed because of it, such as one that was
+     * cancelled or superseded, so that if it was the probe another request can test the host.
+     */
+    public synchronized void probeAborted() {
+        probing = false;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        probing = false;
+        if (consecutiveFailures >= FAILURE_THRESHOLD) {
+            openUntil = System.currentTimeMillis() + openMillis;
+        }
+    }
+}
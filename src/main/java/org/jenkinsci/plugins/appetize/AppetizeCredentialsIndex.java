@@ -0,0 +1,139 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appetize.io credentials indexed by id. Looking credentials up walks every store and domain, so
+ * the result is kept until a credentials store is saved again: the global store, or a user or
+ * folder, which hold the credentials of their own stores. Providers whose saves can't be told
+ * apart are covered by the index expiring after a while, and by reloading it early when an id
+ * is missing from it.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public final class AppetizeCredentialsIndex {
+    private static final AppetizeCredentialsIndex INSTANCE = new AppetizeCredentialsIndex();
+
+    private static final long MAX_AGE_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final long MIN_RELOAD_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private volatile Snapshot snapshot;
+
+    private AppetizeCredentialsIndex() {
+    }
+
+    public static AppetizeCredentialsIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the credentials with this id, or null if there are none
+     */
+    public AppetizeCredentials lookup(String id) {
+        Snapshot current = current();
+        AppetizeCredentials credentials = current.byId.get(id);
+        if (credentials == null && System.nanoTime() - current.loadedAt > MIN_RELOAD_INTERVAL_NANOS) {
+            // may have been added to a store we don't hear about
+            credentials = reload().byId.get(id);
+        }
+        return credentials;
+    }
+
+    /**
+     * @return all Appetize.io credentials, in lookup order
+     */
+    public Collection<AppetizeCredentials> all() {
+        return current().byId.values();
+    }
+
+    void invalidate() {
+        snapshot = null;
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        if (current == null || System.nanoTime() - current.loadedAt > MAX_AGE_NANOS) {
+            current = reload();
+        }
+        return current;
+    }
+
+    private synchronized Snapshot reload() {
+        List<AppetizeCredentials> credentialsList = CredentialsProvider.lookupCredentials(
+                AppetizeCredentials.class, (Item)null,
+                ACL.SYSTEM, Collections.<DomainRequirement>emptyList());
+
+        Map<String, AppetizeCredentials> byId = new LinkedHashMap<String, AppetizeCredentials>();
+        for (AppetizeCredentials credentials : credentialsList) {
+            // the first match wins, as with a linear scan
+            if (!byId.containsKey(credentials.getId())) {
+                byId.put(credentials.getId(), credentials);
+            }
+        }
+
+        Snapshot loaded = new Snapshot(Collections.unmodifiableMap(byId));
+        snapshot = loaded;
+        return loaded;
+    }
+
+    private static final class Snapshot {
+        final Map<String, AppetizeCredentials> byId;
+        final long loadedAt = System.nanoTime();
+
+        Snapshot(Map<String, AppetizeCredentials> byId) {
+            this.byId = byId;
+        }
+    }
+
+    @Extension
+    public static class CredentialsStoreListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            // folders are item groups, and so is Jenkins itself
+            if (o instanceof SystemCredentialsProvider || o instanceof User || o instanceof ItemGroup) {
+                get().invalidate();
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Computes a SHA-256 digest of an app on the node that holds the workspace, and in the same walk
+ * measures it and the files a bundle filter leaves out of it, so that publishing reads the tree
+ * once. For an .app directory the digest covers the relative path, size and contents of every
+ * file in a stable order, so it does not change when the build only touches timestamps. Files
+ * left out by a bundle filter don't count, since they are never uploaded. Symbolic links, such
+ * as Versions/Current in a framework, are measured only through their target.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeDigestCallable implements FilePath.FileCallable<AppetizeDigestCallable.Result> {
+    private static final long serialVersionUID = 1L;
+
+    private final AppetizeBundleFilter bundleFilter;
+    private final boolean digest;
+
+    public AppetizeDigestCallable() {
+        this(null);
+    }
+
+    /**
+     * @param bundleFilter decides which files of an .app directory are left out, may be null
+     */
+    public AppetizeDigestCallable(AppetizeBundleFilter bundleFilter) {
+        this(bundleFilter, true);
+    }
+
+    /**
+     * @param bundleFilter decides which files of an .app directory are left out, may be null
+     * @param digest false to only measure the app
+     */
+    public AppetizeDigestCallable(AppetizeBundleFilter bundleFilter, boolean digest) {
+        this.bundleFilter = bundleFilter == null || bundleFilter.isEmpty() ? null : bundleFilter;
+        this.digest = digest;
+    }
+
+    /**
+     * The digest and size of an app
+     */
+    public static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String digest;
+        private long size;
+        private long excludedFiles;
+        private long excludedBytes;
+
+        /**
+         * @return hex digest, or null if it was not asked for
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return size of an .apk, or the total size of the files in an .app bundle
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return number of files the bundle filter leaves out
+         */
+        public long getExcludedFiles() {
+            return excludedFiles;
+        }
+
+        /**
+         * @return total size of the files the bundle filter leaves out
+         */
+        public long getExcludedBytes() {
+            return excludedBytes;
+        }
+    }
+
+    /**
+     * @return the digest and size, or null if the app does not exist
+     */
+    public Result invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        if (!f.exists()) return null;
+
+        MessageDigest digest = null;
+        if (this.digest) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        Result result = new Result();
+        byte[] buf = new byte[64 * 1024];
+        if (f.isDirectory()) {
+            walk(f, "", false, false, digest, buf, result);
+        } else {
+            result.size = f.length();
+            if (digest != null) update(digest, f, buf);
+        }
+        if (digest != null) result.digest = Util.toHexString(digest.digest());
+        return result;
+    }
+
+    /**
+     * @param excluded true if the filter leaves out the directory
+     * @param linked true if the directory is reached through a symbolic link
+     * @param digest digest of the files to upload, or null if none of this directory is digested
+     */
+    private void walk(File dir, String prefix, boolean excluded, boolean linked, MessageDigest digest, byte[] buf,
+                      Result result) throws IOException, InterruptedException {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        Arrays.sort(children);
+
+        for (File child : children) {
+            if (Thread.interrupted()) throw new InterruptedException();
+
+            String path = prefix + child.getName();
+            boolean directory = child.isDirectory();
+            boolean childExcluded = excluded || (bundleFilter != null && bundleFilter.isExcluded(path, directory));
+            boolean childLinked = linked || Util.isSymlink(child);
+            // links are followed only for the digest, which covers what the zipper uploads
+            MessageDigest childDigest = childExcluded ? null : digest;
+            if (childLinked && childDigest == null) continue;
+
+            if (directory) {
+                walk(child, path + "/", childExcluded, childLinked, childDigest, buf, result);
+                continue;
+            }
+            if (!childLinked) {
+                result.size += child.length();
+                if (childExcluded) {
+                    result.excludedFiles++;
+                    result.excludedBytes += child.length();
+                }
+            }
+            if (childDigest != null) {
+                childDigest.update(path.getBytes("UTF-8"));
+                childDigest.update((byte)0);
+                childDigest.update(Long.toString(child.length()).getBytes("UTF-8"));
+                childDigest.update((byte)0);
+                update(childDigest, child, buf);
+            }
+        }
+    }
+
+    private static void update(MessageDigest digest, File file, byte[] buf) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                digest.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a request that may still be running. Listeners and continuations run on the
+ * thread that completes it, which for the asynchronous transport is an I/O thread, so they must
+ * not block; if it is already complete they run right away on the caller's thread.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeFuture<T> implements Future<T> {
+    /**
+     * Told once whether the future succeeded or failed
+     */
+    public interface Listener<T> {
+        void onSuccess(T value);
+
+        void onFailure(Throwable failure);
+    }
+
+    /**
+     * The next step after a successful future
+     */
+    public interface Continuation<T, R> {
+        AppetizeFuture<R> apply(T value) throws Exception;
+    }
+
+    private T value;
+    private Throwable failure;
+    private boolean done;
+    private List<Listener<? super T>> listeners = new ArrayList<Listener<? super T>>();
+
+    public static <T> AppetizeFuture<T> completed(T value) {
+        AppetizeFuture<T> future = new AppetizeFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    public static <T> AppetizeFuture<T> failed(Throwable failure) {
+        AppetizeFuture<T> future = new AppetizeFuture<T>();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * @return false if the future was already complete
+     */
+    public boolean complete(T value) {
+        return finish(value, null);
+    }
+
+    /**
+     * @return false if the future was already complete
+     */
+    public boolean fail(Throwable failure) {
+        return finish(null, failure);
+    }
+
+    private boolean finish(T value, Throwable failure) {
+        List<Listener<? super T>> toNotify;
+        synchronized (this) {
+            if (done) return false;
+            this.value = value;
+            this.failure = failure;
+            done = true;
+            toNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        for (Listener<? super T> listener : toNotify) {
+            notify(listener, value, failure);
+        }
+        return true;
+    }
+
+    public void addListener(Listener<? super T> listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notify(listener, value, failure);
+    }
+
+    private static <T> void notify(Listener<? super T> listener, T value, Throwable failure) {
+        if (failure == null) {
+            listener.onSuccess(value);
+        } else {
+            listener.onFailure(failure);
+        }
+    }
+
+    /**
+     * Runs the next step once this future succeeds, without waiting for it.
+     * @return the result of the next step, or the failure of this future or of the step
+     */
+    public <R> AppetizeFuture<R> then(final Continuation<? super T, R> next) {
+        final AppetizeFuture<R> result = new AppetizeFuture<R>();
+        addListener(new Listener<T>() {
+            public void onSuccess(T value) {
+                AppetizeFuture<R> step;
+                try {
+                    step = next.apply(value);
+                } catch (Exception e) {
+                    result.fail(e);
+                    return;
+                }
+                step.addListener(new Listener<R>() {
+                    public void onSuccess(R value) {
+                        result.complete(value);
+                    }
+
+                    public void onFailure(Throwable failure) {
+                        result.fail(failure);
+                    }
+                });
+            }
+
+            public void onFailure(Throwable failure) {
+                result.fail(failure);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Fails the future with a CancellationException. A request that is already running is not
+     * stopped, its result is ignored.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return fail(new CancellationException());
+    }
+
+    public synchronized boolean isCancelled() {
+        return failure instanceof CancellationException;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getValue();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!done) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) throw new TimeoutException();
+            wait(remaining);
+        }
+        return getValue();
+    }
+
+    private T getValue() throws ExecutionException {
+        if (failure instanceof CancellationException) throw (CancellationException)failure;
+        if (failure != null) throw new ExecutionException(failure);
+        return value;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import com.google.gson.JsonParseException;
+import hudson.model.Job;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Every app a job has published, one JSON object per line in a file in the job directory.
+ * Entries are only ever appended, and where each readable line starts and ends is indexed in
+ * memory, so a page of history is read straight from the file without loading any builds.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeHistory {
+    static final String FILE_NAME = "appetize-history.jsonl";
+    private static final Logger LOGGER = Logger.getLogger(AppetizeHistory.class.getName());
+
+    private static final Map<Job<?, ?>, AppetizeHistory> histories = new WeakHashMap<Job<?, ?>, AppetizeHistory>();
+
+    private File file;
+    // where each entry that can be read starts and ends, damaged lines are left out
+    private long[] starts = new long[16];
+    private long[] ends = new long[16];
+    private int count;
+    // length of the indexed part of the file, which ends with a complete line
+    private long indexed;
+
+    AppetizeHistory(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the history of a job, read from wherever the job directory is now
+     */
+    public static AppetizeHistory get(Job<?, ?> job) {
+        File file = new File(job.getRootDir(), FILE_NAME);
+        AppetizeHistory history;
+        synchronized (histories) {
+            history = histories.get(job);
+            if (history == null) {
+                history = new AppetizeHistory(file);
+                histories.put(job, history);
+                return history;
+            }
+        }
+        history.setFile(file);
+        return history;
+    }
+
+    /**
+     * Follows a job that was renamed or moved, whose history is indexed again in its new directory.
+     */
+    private synchronized void setFile(File file) {
+        if (file.equals(this.file)) return;
+        this.file = file;
+        count = 0;
+        indexed = 0;
+    }
+
+    public synchronized void append(Entry entry) throws IOException {
+        index();
+        byte[] line = (AppetizeJson.GSON.toJson(entry) + "\n").getBytes("UTF-8");
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            if (file.length() > indexed) {
+                // finish a line cut short by a crash, it's skipped when read
+                out.write('\n');
+            }
+            out.write(line);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return number of entries that can be read
+     */
+    public synchronized int size() throws IOException {
+        index();
+        return count;
+    }
+
+    /**
+     * @param start number of entries to skip, newest first
+     * @param limit maximum number of entries
+     * @return entries, newest first
+     */
+    public synchronized List<Entry> getEntries(int start, int limit) throws IOException {
+        index();
+        List<Entry> entries = new ArrayList<Entry>();
+        if (count == 0 || start >= count) return entries;
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            for (int i = count - 1 - Math.max(0, start); i >= 0 && entries.size() < limit; i--) {
+                byte[] line = new byte[(int)(ends[i] - starts[i])];
+                in.seek(starts[i]);
+                in.readFully(line);
+                Entry entry = parse(line);
+                if (entry != null) entries.add(entry);
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Finds the lines appended since the last call, keeping those that parse.
+     */
+    private void index() throws IOException {
+        long length = file.length();
+        if (length < indexed) {
+            // replaced by a shorter file, start over
+            count = 0;
+            indexed = 0;
+        }
+        if (length <= indexed) return;
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(indexed);
+            byte[] buf = new byte[8192];
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long lineStart = indexed;
+            long position = indexed;
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                int from = 0;
+                for (int i = 0; i < len; i++) {
+                    if (buf[i] != '\n') continue;
+                    line.write(buf, from, i - from);
+                    long lineEnd = position + i + 1;
+                    if (parse(line.toByteArray()) != null) add(lineStart, lineEnd);
+                    line.reset();
+                    lineStart = lineEnd;
+                    from = i + 1;
+                }
+                line.write(buf, from, len - from);
+                position += len;
+            }
+            // an incomplete last line is indexed once it is finished
+            indexed = lineStart;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void add(long start, long end) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    /**
+     * @return the entry on a line, or null if the line is damaged
+     */
+    private Entry parse(byte[] line) throws IOException {
+        String json = new String(line, "UTF-8").trim();
+        if (json.length() == 0) return null;
+        try {
+            return AppetizeJson.GSON.fromJson(json, Entry.class);
+        } catch (JsonParseException e) {
+            LOGGER.log(Level.FINE, "Skipping a damaged line in " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * One published app.
+     */
+    public static class Entry {
+        public int buildNumber;
+        // when the app was published, in milliseconds since the epoch
+        public long timestamp;
+        public String platform;
+        // path of the app in the workspace, if the build published several
+        public String appPath;
+        public String publicKey;
+        public String publicUrl;
+        public String manageUrl;
+        // content digest of the app, if it was computed
+        public String digest;
+        // size of the app in bytes, or -1 if unknown
+        public long size = -1;
+        // time from starting to publish until the app was updated on Appetize.io
+        public long durationMillis;
+
+        public int getBuildNumber() {
+            return buildNumber;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getPlatform() {
+            return platform;
+        }
+
+        public String getAppPath() {
+            return appPath;
+        }
+
+        public String getPublicKey() {
+            return publicKey;
+        }
+
+        public String getPublicUrl() {
+            return publicUrl;
+        }
+
+        public String getManageUrl() {
+            return manageUrl;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+    }
+}
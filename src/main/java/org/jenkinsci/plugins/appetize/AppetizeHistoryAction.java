@@ -0,0 +1,131 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import com.google.gson.stream.JsonWriter;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Pages through a job's {@link AppetizeHistory}, newest first, as a page or as JSON at
+ * <tt>appetize-history/json?start=0&amp;limit=50</tt>.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeHistoryAction implements Action {
+    static final int PAGE_SIZE = 50;
+    private static final int MAX_LIMIT = 500;
+
+    private final AbstractProject<?, ?> project;
+
+    public AppetizeHistoryAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
+
+    public int getSize() throws IOException {
+        return AppetizeHistory.get(project).size();
+    }
+
+    /**
+     * @param start number of entries to skip, from the request, may be null
+     */
+    public List<AppetizeHistory.Entry> getEntries(String start) throws IOException {
+        return AppetizeHistory.get(project).getEntries(parseStart(start), PAGE_SIZE);
+    }
+
+    public int parseStart(String start) {
+        return Math.max(0, parseInt(start, 0));
+    }
+
+    public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        int start = parseStart(req.getParameter("start"));
+        int limit = Math.min(MAX_LIMIT, Math.max(1, parseInt(req.getParameter("limit"), PAGE_SIZE)));
+        AppetizeHistory history = AppetizeHistory.get(project);
+        List<AppetizeHistory.Entry> entries = history.getEntries(start, limit);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        JsonWriter out = new JsonWriter(rsp.getWriter());
+        out.beginObject();
+        out.name("total").value(history.size());
+        out.name("start").value(start);
+        out.name("entries").beginArray();
+        for (AppetizeHistory.Entry entry : entries) {
+            AppetizeJson.GSON.toJson(entry, AppetizeHistory.Entry.class, out);
+        }
+        out.endArray();
+        out.endObject();
+        out.flush();
+    }
+
+    public String formatAge(long timestamp) {
+        return Util.getTimeSpanString(System.currentTimeMillis() - timestamp) + " ago";
+    }
+
+    public String formatDuration(long millis) {
+        return Util.getTimeSpanString(millis);
+    }
+
+    public String formatSize(long size) {
+        return size < 0 ? "" : String.format("%.1f MB", size / (1024.0 * 1024.0));
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "/plugin/appetize/images/logo-96.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Appetize.io History";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "appetize-history";
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.Extension;
+import hudson.ProxyConfiguration;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opens and releases the HTTP connections used by all builds. Responses are read to the end and
+ * closed rather than disconnected, so the JDK keeps the sockets alive and reuses them per host
+ * instead of every request paying for a new TCP and TLS handshake. The Jenkins proxy settings
+ * are resolved once per host and cached until the proxy configuration is saved again.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public final class AppetizeHttpClient {
+    private static final AppetizeHttpClient INSTANCE = new AppetizeHttpClient();
+
+    private final Map<String, Proxy> proxies = new ConcurrentHashMap<String, Proxy>();
+    private volatile ProxyConfiguration proxyConfig;
+
+    private AppetizeHttpClient() {
+    }
+
+    public static AppetizeHttpClient get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the proxy the Jenkins global configuration uses for a host, or null if Jenkins has
+     * no proxy for it or is not available, e.g. on a slave, in which case the JVM proxy settings
+     * apply
+     */
+    public Proxy getProxy(String host) {
+        Jenkins jenkins = Jenkins.getInstance();
+        ProxyConfiguration config = jenkins == null ? null : jenkins.proxy;
+        if (config != proxyConfig) {
+            proxies.clear();
+            proxyConfig = config;
+        }
+        if (config == null) return null;
+
+        Proxy proxy = proxies.get(host);
+        if (proxy == null) {
+            proxy = config.createProxy(host);
+            if (proxy == null || proxy.type() != Proxy.Type.HTTP) {
+                // cached as NO_PROXY, since the map can't hold null
+                proxy = Proxy.NO_PROXY;
+            }
+            proxies.put(host, proxy);
+        }
+        return proxy == Proxy.NO_PROXY ? null : proxy;
+    }
+
+    /**
+     * @param proxy proxy to use, or null for the Jenkins global proxy
+     * @return true if requests to a URL go through a SOCKS proxy, either the given one or one
+     * from the JVM proxy settings
+     */
+    public boolean isSocksProxied(URL url, Proxy proxy) {
+        if (proxy == null) proxy = getProxy(url.getHost());
+        if (proxy != null) return proxy.type() == Proxy.Type.SOCKS;
+
+        ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null) return false;
+        try {
+            for (Proxy candidate : selector.select(url.toURI())) {
+                if (candidate.type() == Proxy.Type.SOCKS) return true;
+            }
+        } catch (URISyntaxException e) {
+            // not a URL the selector can route
+        }
+        return false;
+    }
+
+    void invalidateProxies() {
+        proxies.clear();
+    }
+
+    /**
+     * @param proxy proxy to use, or null for the Jenkins global proxy
+     */
+    public HttpURLConnection open(URL url, Proxy proxy, AppetizeRetryPolicy retryPolicy) throws IOException {
+        if (proxy == null) proxy = getProxy(url.getHost());
+
+        HttpURLConnection connection = (HttpURLConnection)(proxy == null ? url.openConnection() : url.openConnection(proxy));
+        connection.setConnectTimeout(retryPolicy.getConnectTimeoutMillis());
+        connection.setReadTimeout(retryPolicy.getReadTimeoutMillis());
+        return connection;
+    }
+
+    /**
+     * Finishes with a connection that received a response, leaving the socket open for reuse.
+     */
+    public void release(HttpURLConnection connection) {
+        try {
+            drain(connection.getInputStream());
+        } catch (IOException e) {
+            try {
+                drain(connection.getErrorStream());
+            } catch (IOException e2) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) return;
+        try {
+            byte[] buf = new byte[1024];
+            while (in.read(buf) >= 0) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Extension
+    public static class ProxyConfigurationListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof ProxyConfiguration) {
+                get().invalidateProxies();
+            }
+        }
+    }
+}
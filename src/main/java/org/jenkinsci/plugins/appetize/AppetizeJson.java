@@ -0,0 +1,287 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared, thread-safe Gson instance for the Appetize.io API, with hand-written type adapters
+ * for the request and response classes so that no reflection is needed per call.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public final class AppetizeJson {
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(AppetizeApiService.AppetizePresignedUrls.class, new PresignedUrlsAdapter().nullSafe())
+            .registerTypeAdapter(AppetizeApiService.AppetizeMultipartUrls.class, new MultipartUrlsAdapter().nullSafe())
+            .registerTypeAdapter(AppetizeApiService.AppetizeUpdateParams.class, new UpdateParamsAdapter().nullSafe())
+            .registerTypeAdapter(AppetizeApiService.AppetizeUpdateResult.class, new UpdateResultAdapter().nullSafe())
+            .registerTypeAdapter(AppetizeHistory.Entry.class, new HistoryEntryAdapter().nullSafe())
+            .create();
+
+    private AppetizeJson() {
+    }
+
+    static class PresignedUrlsAdapter extends TypeAdapter<AppetizeApiService.AppetizePresignedUrls> {
+        private final MultipartUrlsAdapter multipartAdapter = new MultipartUrlsAdapter();
+
+        @Override
+        public void write(JsonWriter out, AppetizeApiService.AppetizePresignedUrls urls) throws IOException {
+            out.beginObject();
+            out.name("iosUrl").value(urls.iosUrl);
+            out.name("androidUrl").value(urls.androidUrl);
+            if (urls.iosMultipart != null) {
+                out.name("iosMultipart");
+                multipartAdapter.write(out, urls.iosMultipart);
+            }
+            if (urls.androidMultipart != null) {
+                out.name("androidMultipart");
+                multipartAdapter.write(out, urls.androidMultipart);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public AppetizeApiService.AppetizePresignedUrls read(JsonReader in) throws IOException {
+            AppetizeApiService.AppetizePresignedUrls urls = new AppetizeApiService.AppetizePresignedUrls();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("iosUrl")) {
+                    urls.iosUrl = nextString(in);
+                } else if (name.equals("androidUrl")) {
+                    urls.androidUrl = nextString(in);
+                } else if (name.equals("iosMultipart")) {
+                    urls.iosMultipart = multipartAdapter.nullSafe().read(in);
+                } else if (name.equals("androidMultipart")) {
+                    urls.androidMultipart = multipartAdapter.nullSafe().read(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return urls;
+        }
+    }
+
+    static class MultipartUrlsAdapter extends TypeAdapter<AppetizeApiService.AppetizeMultipartUrls> {
+        @Override
+        public void write(JsonWriter out, AppetizeApiService.AppetizeMultipartUrls urls) throws IOException {
+            out.beginObject();
+            out.name("url").value(urls.url);
+            if (urls.partUrls != null) {
+                out.name("partUrls").beginArray();
+                for (String partUrl : urls.partUrls) {
+                    out.value(partUrl);
+                }
+                out.endArray();
+            }
+            out.name("completeUrl").value(urls.completeUrl);
+            out.endObject();
+        }
+
+        @Override
+        public AppetizeApiService.AppetizeMultipartUrls read(JsonReader in) throws IOException {
+            AppetizeApiService.AppetizeMultipartUrls urls = new AppetizeApiService.AppetizeMultipartUrls();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("url")) {
+                    urls.url = nextString(in);
+                } else if (name.equals("completeUrl")) {
+                    urls.completeUrl = nextString(in);
+                } else if (name.equals("partUrls") && in.peek() == JsonToken.BEGIN_ARRAY) {
+                    List<String> partUrls = new ArrayList<String>();
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        partUrls.add(nextString(in));
+                    }
+                    in.endArray();
+                    urls.partUrls = partUrls;
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return urls;
+        }
+    }
+
+    static class UpdateParamsAdapter extends TypeAdapter<AppetizeApiService.AppetizeUpdateParams> {
+        @Override
+        public void write(JsonWriter out, AppetizeApiService.AppetizeUpdateParams params) throws IOException {
+            out.beginObject();
+            out.name("url").value(params.url);
+            out.name("platform").value(params.platform);
+            out.name("token").value(params.token);
+            out.name("privateKey").value(params.privateKey);
+            out.name("source").value(params.source);
+            out.name("jenkinsUUID").value(params.jenkinsUUID);
+            out.name("jobUUID").value(params.jobUUID);
+            out.name("buildNumber").value(params.buildNumber);
+            out.endObject();
+        }
+
+        @Override
+        public AppetizeApiService.AppetizeUpdateParams read(JsonReader in) throws IOException {
+            AppetizeApiService.AppetizeUpdateParams params = new AppetizeApiService.AppetizeUpdateParams();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("url")) {
+                    params.url = nextString(in);
+                } else if (name.equals("platform")) {
+                    params.platform = nextString(in);
+                } else if (name.equals("token")) {
+                    params.token = nextString(in);
+                } else if (name.equals("privateKey")) {
+                    params.privateKey = nextString(in);
+                } else if (name.equals("source")) {
+                    params.source = nextString(in);
+                } else if (name.equals("jenkinsUUID")) {
+                    params.jenkinsUUID = nextString(in);
+                } else if (name.equals("jobUUID")) {
+                    params.jobUUID = nextString(in);
+                } else if (name.equals("buildNumber") && in.peek() == JsonToken.NUMBER) {
+                    params.buildNumber = in.nextInt();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return params;
+        }
+    }
+
+    static class UpdateResultAdapter extends TypeAdapter<AppetizeApiService.AppetizeUpdateResult> {
+        @Override
+        public void write(JsonWriter out, AppetizeApiService.AppetizeUpdateResult result) throws IOException {
+            out.beginObject();
+            out.name("publicKey").value(result.publicKey);
+            out.name("privateKey").value(result.privateKey);
+            out.name("publicURL").value(result.publicURL);
+            out.name("appURL").value(result.appURL);
+            out.name("manageURL").value(result.manageURL);
+            out.endObject();
+        }
+
+        @Override
+        public AppetizeApiService.AppetizeUpdateResult read(JsonReader in) throws IOException {
+            AppetizeApiService.AppetizeUpdateResult result = new AppetizeApiService.AppetizeUpdateResult();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("publicKey")) {
+                    result.publicKey = nextString(in);
+                } else if (name.equals("privateKey")) {
+                    result.privateKey = nextString(in);
+                } else if (name.equals("publicURL")) {
+                    result.publicURL = nextString(in);
+                } else if (name.equals("appURL")) {
+                    result.appURL = nextString(in);
+                } else if (name.equals("manageURL")) {
+                    result.manageURL = nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return result;
+        }
+    }
+
+    static class HistoryEntryAdapter extends TypeAdapter<AppetizeHistory.Entry> {
+        @Override
+        public void write(JsonWriter out, AppetizeHistory.Entry entry) throws IOException {
+            out.beginObject();
+            out.name("buildNumber").value(entry.buildNumber);
+            out.name("timestamp").value(entry.timestamp);
+            out.name("platform").value(entry.platform);
+            if (entry.appPath != null) out.name("appPath").value(entry.appPath);
+            out.name("publicKey").value(entry.publicKey);
+            out.name("publicUrl").value(entry.publicUrl);
+            out.name("manageUrl").value(entry.manageUrl);
+            if (entry.digest != null) out.name("digest").value(entry.digest);
+            out.name("size").value(entry.size);
+            out.name("durationMillis").value(entry.durationMillis);
+            out.endObject();
+        }
+
+        @Override
+        public AppetizeHistory.Entry read(JsonReader in) throws IOException {
+            AppetizeHistory.Entry entry = new AppetizeHistory.Entry();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("buildNumber") && in.peek() == JsonToken.NUMBER) {
+                    entry.buildNumber = in.nextInt();
+                } else if (name.equals("timestamp") && in.peek() == JsonToken.NUMBER) {
+                    entry.timestamp = in.nextLong();
+                } else if (name.equals("platform")) {
+                    entry.platform = nextString(in);
+                } else if (name.equals("appPath")) {
+                    entry.appPath = nextString(in);
+                } else if (name.equals("publicKey")) {
+                    entry.publicKey = nextString(in);
+                } else if (name.equals("publicUrl")) {
+                    entry.publicUrl = nextString(in);
+                } else if (name.equals("manageUrl")) {
+                    entry.manageUrl = nextString(in);
+                } else if (name.equals("digest")) {
+                    entry.digest = nextString(in);
+                } else if (name.equals("size") && in.peek() == JsonToken.NUMBER) {
+                    entry.size = in.nextLong();
+                } else if (name.equals("durationMillis") && in.peek() == JsonToken.NUMBER) {
+                    entry.durationMillis = in.nextLong();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return entry;
+        }
+    }
+
+    /**
+     * @return the next string, or null for a JSON null or a value of another type
+     */
+    private static String nextString(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return in.nextString();
+        }
+        in.skipValue();
+        return null;
+    }
+}
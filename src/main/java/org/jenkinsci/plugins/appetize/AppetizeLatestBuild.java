@@ -0,0 +1,237 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The apps of a job's most recent successful builds that published to Appetize.io, kept in the
+ * job directory so project pages can show the latest ones without loading any builds. Updated
+ * when builds complete or are deleted, and when a background or resumed upload finishes. A few
+ * builds are kept so that when the latest one is deleted the one before it takes its place.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeLatestBuild {
+    static final String FILE_NAME = "appetize-latest.xml";
+    // published builds remembered, newest first
+    private static final int MAX_BUILDS = 10;
+    private static final Logger LOGGER = Logger.getLogger(AppetizeLatestBuild.class.getName());
+
+    private static final Map<Job<?, ?>, AppetizeLatestBuild> cache = new WeakHashMap<Job<?, ?>, AppetizeLatestBuild>();
+
+    private List<PublishedBuild> builds = new ArrayList<PublishedBuild>();
+
+    private AppetizeLatestBuild() {
+    }
+
+    /**
+     * @return the index of a job. A job without one only has its last successful build looked
+     * at, e.g. for apps published before the index existed, and if that build didn't publish the
+     * empty result is kept in memory without writing an index.
+     */
+    public static AppetizeLatestBuild get(Job<?, ?> job) {
+        synchronized (cache) {
+            AppetizeLatestBuild latest = peek(job);
+            if (latest == null) {
+                latest = new AppetizeLatestBuild();
+                Run<?, ?> run = job.getLastSuccessfulBuild();
+                if (run != null) latest.update(run);
+                cache.put(job, latest);
+            }
+            return latest;
+        }
+    }
+
+    /**
+     * @return the index of a job if it has one, without looking at its builds
+     */
+    private static AppetizeLatestBuild peek(Job<?, ?> job) {
+        synchronized (cache) {
+            AppetizeLatestBuild latest = cache.get(job);
+            if (latest != null) return latest;
+
+            XmlFile file = getFile(job);
+            if (!file.exists()) return null;
+            try {
+                latest = (AppetizeLatestBuild)file.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read " + file, e);
+                return null;
+            }
+            if (latest.builds == null) latest.builds = new ArrayList<PublishedBuild>();
+            cache.put(job, latest);
+            return latest;
+        }
+    }
+
+    private static XmlFile getFile(Job<?, ?> job) {
+        return new XmlFile(new File(job.getRootDir(), FILE_NAME));
+    }
+
+    /**
+     * @return the first app of the latest build that published, or null
+     */
+    public synchronized AppetizeBuildAction getLatest() {
+        return builds.isEmpty() ? null : builds.get(0).apps.get(0);
+    }
+
+    /**
+     * @return all apps of the latest build that published
+     */
+    public synchronized List<AppetizeBuildAction> getLatestApps() {
+        return builds.isEmpty() ? Collections.<AppetizeBuildAction>emptyList()
+                : Collections.unmodifiableList(new ArrayList<AppetizeBuildAction>(builds.get(0).apps));
+    }
+
+    /**
+     * @return number of the latest build that published, or 0 if none is known
+     */
+    public synchronized int getBuildNumber() {
+        return builds.isEmpty() ? 0 : builds.get(0).number;
+    }
+
+    /**
+     * Records a build's apps, or forgets the build if it no longer has any.
+     */
+    public synchronized void update(Run<?, ?> run) {
+        // a build that is still running may yet fail, it's recorded when it completes
+        if (run.isBuilding()) return;
+
+        int i = indexOf(run.getNumber());
+        if (isPublished(run)) {
+            if (i < builds.size() && builds.get(i).number == run.getNumber()) builds.remove(i);
+            builds.add(i, new PublishedBuild(run.getNumber(), getPublishedApps(run)));
+            while (builds.size() > MAX_BUILDS) {
+                builds.remove(builds.size() - 1);
+            }
+        } else if (i < builds.size() && builds.get(i).number == run.getNumber()) {
+            builds.remove(i);
+        } else {
+            return;
+        }
+        save(run.getParent());
+    }
+
+    /**
+     * Forgets a deleted build, so the one before it becomes the latest.
+     */
+    private synchronized void deleted(Run<?, ?> run) {
+        int i = indexOf(run.getNumber());
+        if (i == builds.size() || builds.get(i).number != run.getNumber()) return;
+        builds.remove(i);
+        save(run.getParent());
+    }
+
+    /**
+     * @return position of a build in the list, or where it would go
+     */
+    private int indexOf(int number) {
+        int i = 0;
+        while (i < builds.size() && builds.get(i).number > number) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isPublished(Run<?, ?> run) {
+        Result result = run.getResult();
+        return result != null && result.isBetterOrEqualTo(Result.UNSTABLE) && !getPublishedApps(run).isEmpty();
+    }
+
+    /**
+     * @return the apps a build published, leaving out those superseded by a newer build
+     */
+    private static List<AppetizeBuildAction> getPublishedApps(Run<?, ?> run) {
+        List<AppetizeBuildAction> apps = new ArrayList<AppetizeBuildAction>();
+        for (AppetizeBuildAction action : run.getActions(AppetizeBuildAction.class)) {
+            if (!action.isSuperseded()) apps.add(action);
+        }
+        return apps;
+    }
+
+    /**
+     * Writes the index to wherever the job directory is now, which changes when the job is
+     * renamed or moved.
+     */
+    private void save(Job<?, ?> job) {
+        XmlFile file = getFile(job);
+        try {
+            file.write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write " + file, e);
+        }
+    }
+
+    /**
+     * A build and the apps it published
+     */
+    private static class PublishedBuild {
+        private final int number;
+        private final List<AppetizeBuildAction> apps;
+
+        PublishedBuild(int number, List<AppetizeBuildAction> apps) {
+            this.number = number;
+            this.apps = apps;
+        }
+    }
+
+    @Extension
+    public static class Listener extends RunListener<Run> {
+        public Listener() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onCompleted(Run run, TaskListener listener) {
+            // jobs that never publish don't get an index written
+            if (run.getAction(AppetizeBuildAction.class) != null) {
+                get(run.getParent()).update(run);
+            }
+        }
+
+        @Override
+        public void onDeleted(Run run) {
+            AppetizeLatestBuild latest = peek(run.getParent());
+            if (latest != null) latest.deleted(run);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for every publish since Jenkins started, added up from the
+ * {@link AppetizeTimings} of each publish and served as JSON by {@link AppetizeMetricsAction}.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public final class AppetizeMetrics {
+    // upper bounds of the histogram buckets, the last bucket has none
+    static final long[] BUCKETS_MILLIS = {
+            10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, 300000, 600000
+    };
+
+    // created after the buckets it uses
+    private static final AppetizeMetrics INSTANCE = new AppetizeMetrics();
+
+    private final AtomicLong publishes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final Histogram total = new Histogram();
+    private final Map<AppetizeTimings.Phase, Histogram> phases =
+            new EnumMap<AppetizeTimings.Phase, Histogram>(AppetizeTimings.Phase.class);
+    private final Map<AppetizeTimings.Phase, AtomicLong> phaseFailures =
+            new EnumMap<AppetizeTimings.Phase, AtomicLong>(AppetizeTimings.Phase.class);
+
+    private AppetizeMetrics() {
+        for (AppetizeTimings.Phase phase : AppetizeTimings.Phase.values()) {
+            phases.put(phase, new Histogram());
+            phaseFailures.put(phase, new AtomicLong());
+        }
+    }
+
+    public static AppetizeMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a finished publish.
+     * @param success false if the publish failed, in the failed phase of the timings if known
+     */
+    public void record(AppetizeTimings timings, boolean success) {
+        publishes.incrementAndGet();
+        if (!success) {
+            failures.incrementAndGet();
+            AppetizeTimings.Phase failedPhase = timings.getFailedPhase();
+            if (failedPhase != null) phaseFailures.get(failedPhase).incrementAndGet();
+        }
+        bytesUploaded.addAndGet(timings.getBytesUploaded());
+        retries.addAndGet(timings.getRetries());
+        total.record(timings.getTotal());
+        for (Map.Entry<AppetizeTimings.Phase, Long> entry : timings.getMillis().entrySet()) {
+            phases.get(entry.getKey()).record(entry.getValue());
+        }
+    }
+
+    /**
+     * Counts a publish given up for a newer build, after adding it with {@link #record}.
+     */
+    public void recordSuperseded() {
+        superseded.incrementAndGet();
+    }
+
+    public long getPublishes() {
+        return publishes.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginObject();
+        out.name("publishes").value(publishes.get());
+        out.name("failures").value(failures.get());
+        out.name("superseded").value(superseded.get());
+        out.name("bytesUploaded").value(bytesUploaded.get());
+        out.name("retries").value(retries.get());
+        long uploadMillis = phases.get(AppetizeTimings.Phase.UPLOAD).totalMillis.get();
+        out.name("uploadBytesPerSecond").value(uploadMillis > 0 ? bytesUploaded.get() * 1000 / uploadMillis : 0);
+        out.name("total");
+        total.writeJson(out);
+        out.name("phases").beginObject();
+        for (AppetizeTimings.Phase phase : AppetizeTimings.Phase.values()) {
+            out.name(phase.name().toLowerCase());
+            phases.get(phase).writeJson(out);
+        }
+        out.endObject();
+        out.name("failuresByPhase").beginObject();
+        for (AppetizeTimings.Phase phase : AppetizeTimings.Phase.values()) {
+            out.name(phase.name().toLowerCase()).value(phaseFailures.get(phase).get());
+        }
+        out.endObject();
+        out.endObject();
+    }
+
+    /**
+     * Latencies counted in fixed buckets, with their count, sum and maximum
+     */
+    static class Histogram {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+        private final AtomicLong maxMillis = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_MILLIS.length + 1);
+
+        void record(long millis) {
+            count.incrementAndGet();
+            totalMillis.addAndGet(millis);
+            long max;
+            while ((max = maxMillis.get()) < millis && !maxMillis.compareAndSet(max, millis)) {
+                // another thread raised the maximum, compare again
+            }
+            int bucket = 0;
+            while (bucket < BUCKETS_MILLIS.length && millis > BUCKETS_MILLIS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        void writeJson(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("count").value(count.get());
+            out.name("totalMillis").value(totalMillis.get());
+            out.name("maxMillis").value(maxMillis.get());
+            out.name("buckets").beginArray();
+            for (int i = 0; i < buckets.length(); i++) {
+                out.beginObject();
+                out.name("le");
+                if (i < BUCKETS_MILLIS.length) {
+                    out.value(BUCKETS_MILLIS[i]);
+                } else {
+                    out.value("+Inf");
+                }
+                out.name("count").value(buckets.get(i));
+                out.endObject();
+            }
+            out.endArray();
+            out.endObject();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import com.google.gson.stream.JsonWriter;
+import hudson.Extension;
+import hudson.model.RootAction;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+
+/**
+ * Serves {@link AppetizeMetrics} as JSON at <tt>/appetize-metrics/</tt>, for monitoring systems
+ * to poll. Not shown in the side panel.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+@Extension
+public class AppetizeMetricsAction implements RootAction {
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Appetize.io metrics";
+    }
+
+    public String getUrlName() {
+        return "appetize-metrics";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        rsp.setContentType("application/json;charset=UTF-8");
+        JsonWriter out = new JsonWriter(rsp.getWriter());
+        AppetizeMetrics.get().writeJson(out);
+        out.flush();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads a file in parts over a bounded pool of threads, or with a bounded number in flight on
+ * an asynchronous transport, retrying each failed part on its own, and assembles the parts into
+ * a single object.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeMultipartUploader {
+    /**
+     * Keeps track of uploaded parts so an interrupted upload can continue where it left off.
+     */
+    public interface Journal {
+        /**
+         * @return URLs of an unfinished upload of a file with this length and part size, or null
+         */
+        AppetizeApiService.AppetizeMultipartUrls getMultipartUrls(long length, long partSize);
+
+        /**
+         * @return ETag of a part that was already uploaded, or null
+         */
+        String getConfirmedPart(int part);
+
+        void multipartStarted(AppetizeApiService.AppetizeMultipartUrls urls, long length, long partSize) throws IOException;
+
+        void partConfirmed(int part, String etag) throws IOException;
+    }
+
+    private final AppetizeApiService appetize;
+    private final int parallelism;
+    private final PrintStream logger;
+    private final Journal journal;
+
+    /**
+     * @param journal records uploaded parts, may be null
+     */
+    public AppetizeMultipartUploader(AppetizeApiService appetize, int parallelism, PrintStream logger, Journal journal) {
+        this.appetize = appetize;
+        this.parallelism = Math.max(1, parallelism);
+        this.logger = logger;
+        this.journal = journal;
+    }
+
+    /**
+     * @param file file to upload
+     * @param partSize size of every part but the last
+     * @param urls pre-signed URLs, one per part
+     * @return true if all parts were uploaded and assembled
+     */
+    public boolean upload(final File file, final long partSize, final AppetizeApiService.AppetizeMultipartUrls urls)
+            throws InterruptedException {
+        final long length = file.length();
+        int parts = urls.partUrls.size();
+        logger.println("Uploading " + length + " bytes in " + parts + " parts");
+
+        // asynchronous parts are sent by the transport's I/O threads, without a pool of our own
+        boolean asynchronous = false;
+        try {
+            asynchronous = appetize.isAsynchronous(urls.partUrls.get(0));
+        } catch (MalformedURLException e) {
+            // the part uploads fail and report it
+        }
+        ExecutorService executor = asynchronous ? null : Executors.newFixedThreadPool(Math.min(parallelism, parts),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Appetize.io multipart upload"));
+        final Semaphore inFlight = new Semaphore(parallelism);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>(parts);
+            for (int i = 0; i < parts; i++) {
+                final String confirmed = journal == null ? null : journal.getConfirmedPart(i);
+                if (confirmed != null) {
+                    futures.add(new ConfirmedPart(confirmed));
+                    continue;
+                }
+
+                final int part = i;
+                final long offset = i * partSize;
+                final int partLength = (int)Math.min(partSize, length - offset);
+                final String partUrl = urls.partUrls.get(i);
+                if (asynchronous) {
+                    inFlight.acquire();
+                    futures.add(uploadPartAsync(part, file, offset, partLength, partUrl, inFlight));
+                    continue;
+                }
+                futures.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        // failed parts are retried by the service, independently of the other parts
+                        String etag = appetize.uploadPart(file, offset, partLength, partUrl);
+                        if (etag != null && journal != null) journal.partConfirmed(part, etag);
+                        return etag;
+                    }
+                }));
+            }
+
+            List<String> etags = new ArrayList<String>(parts);
+            for (int i = 0; i < parts; i++) {
+                String etag;
+                try {
+                    etag = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    etag = null;
+                }
+                if (etag == null) {
+                    logger.println("Error uploading part " + (i + 1) + " of " + parts);
+                    return false;
+                }
+                etags.add(etag);
+            }
+
+            return appetize.completeMultipartUpload(urls.completeUrl, etags);
+        } finally {
+            if (executor != null) executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts uploading a part and returns at once, releasing a permit when the part is done.
+     * The part is journaled on the thread that completes it.
+     */
+    private Future<String> uploadPartAsync(final int part, File file, long offset, int partLength, String partUrl,
+                                           final Semaphore inFlight) {
+        AppetizeFuture<String> upload = appetize.uploadPartAsync(file, offset, partLength, partUrl);
+        upload.addListener(new AppetizeFuture.Listener<String>() {
+            public void onSuccess(String etag) {
+                inFlight.release();
+            }
+
+            public void onFailure(Throwable failure) {
+                inFlight.release();
+            }
+        });
+        return upload.then(new AppetizeFuture.Continuation<String, String>() {
+            public AppetizeFuture<String> apply(String etag) throws IOException {
+                if (etag != null && journal != null) journal.partConfirmed(part, etag);
+                return AppetizeFuture.completed(etag);
+            }
+        });
+    }
+
+    /**
+     * A part uploaded before the upload was interrupted
+     */
+    private static class ConfirmedPart implements Future<String> {
+        private final String etag;
+
+        ConfirmedPart(String etag) {
+            this.etag = etag;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return true;
+        }
+
+        public String get() {
+            return etag;
+        }
+
+        public String get(long timeout, TimeUnit unit) {
+            return etag;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds a packaged app in pooled direct buffers while it stays under a size limit, and moves it
+ * to a scratch file once it grows past the limit or the pool runs out. Either way the package
+ * can be read any number of times with a known length, so uploads of it can be retried.
+ *
+ * Scratch files live in their own directory under java.io.tmpdir. They are deleted by
+ * {@link #dispose()}, and files left behind by a JVM that died mid-upload are swept up the next
+ * time one is created.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizePackageBuffer extends OutputStream {
+    public static final int DEFAULT_LIMIT_MB = 16;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    // older scratch files can't belong to a running upload
+    private static final long STALE_SCRATCH_MILLIS = 24L * 60 * 60 * 1000;
+    private static boolean swept;
+
+    private final long limit;
+    private final AppetizeBufferPool pool;
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private long length;
+    private File file;
+    private OutputStream fileOut;
+    private boolean disposed;
+
+    /**
+     * @param limit largest package kept in memory, in bytes
+     */
+    public AppetizePackageBuffer(long limit) {
+        this(limit, AppetizeBufferPool.get());
+    }
+
+    AppetizePackageBuffer(long limit, AppetizeBufferPool pool) {
+        this.limit = limit;
+        this.pool = pool;
+    }
+
+    /**
+     * @return a new empty file in the scratch directory, which the caller must delete
+     */
+    public static File createScratchFile() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "appetize-scratch");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        synchronized (AppetizePackageBuffer.class) {
+            if (!swept) {
+                swept = true;
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.lastModified() < System.currentTimeMillis() - STALE_SCRATCH_MILLIS) file.delete();
+                    }
+                }
+            }
+        }
+        return File.createTempFile("appetize", ".zip", directory);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (disposed) throw new IOException("Package buffer has been disposed");
+        if (fileOut == null && !reserve(length + len)) spill();
+        if (fileOut != null) {
+            fileOut.write(b, off, len);
+            length += len;
+            return;
+        }
+
+        while (len > 0) {
+            ByteBuffer chunk = chunks.get((int)(length / AppetizeBufferPool.CHUNK_SIZE));
+            int n = Math.min(len, chunk.remaining());
+            chunk.put(b, off, n);
+            off += n;
+            len -= n;
+            length += n;
+        }
+    }
+
+    /**
+     * Takes enough buffers from the pool to hold the given number of bytes.
+     * @return false if that would go over the limit or the pool is used up
+     */
+    private boolean reserve(long capacity) {
+        if (capacity > limit) return false;
+        while ((long)chunks.size() * AppetizeBufferPool.CHUNK_SIZE < capacity) {
+            ByteBuffer chunk = pool.acquire();
+            if (chunk == null) return false;
+            chunks.add(chunk);
+        }
+        return true;
+    }
+
+    /**
+     * Moves what has been written so far to a scratch file and writes the rest there.
+     */
+    private void spill() throws IOException {
+        file = createScratchFile();
+        fileOut = new BufferedOutputStream(new FileOutputStream(file), COPY_BUFFER_SIZE);
+        writeChunks(fileOut);
+        releaseChunks();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOut != null) fileOut.flush();
+    }
+
+    /**
+     * Finishes writing. The package can still be read until it is disposed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (fileOut != null) fileOut.close();
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return true if the package is held in memory rather than in a scratch file
+     */
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * Moves the package to a scratch file if it is still in memory, e.g. for a multipart upload.
+     * @return the scratch file, deleted when the buffer is disposed
+     */
+    public File toFile() throws IOException {
+        if (file == null) spill();
+        fileOut.close();
+        return file;
+    }
+
+    /**
+     * Writes the whole package to a stream, from the start.
+     * @return number of bytes written
+     */
+    public long writeTo(OutputStream out) throws IOException {
+        if (disposed) throw new IOException("Package buffer has been disposed");
+        if (file != null) {
+            fileOut.flush();
+            InputStream in = new FileInputStream(file);
+            try {
+                AppetizeApiService.copy(in, out, length);
+            } finally {
+                in.close();
+            }
+        } else {
+            writeChunks(out);
+        }
+        return length;
+    }
+
+    private void writeChunks(OutputStream out) throws IOException {
+        byte[] buf = new byte[COPY_BUFFER_SIZE];
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer data = chunk.duplicate();
+            data.flip();
+            while (data.hasRemaining()) {
+                int n = Math.min(buf.length, data.remaining());
+                data.get(buf, 0, n);
+                out.write(buf, 0, n);
+            }
+        }
+    }
+
+    private void releaseChunks() {
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+    }
+
+    /**
+     * Returns the buffers to the pool and deletes the scratch file, if any.
+     */
+    public void dispose() {
+        if (disposed) return;
+        disposed = true;
+        releaseChunks();
+        if (file != null) {
+            IOUtils.closeQuietly(fileOut);
+            file.delete();
+        }
+    }
+}
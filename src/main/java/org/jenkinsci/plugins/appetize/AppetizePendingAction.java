@@ -0,0 +1,83 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.model.Action;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Shown on a build while its app is waiting in the {@link AppetizePublishQueue} or being uploaded,
+ * and kept if the upload fails.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizePendingAction implements Action {
+    private final String logFile;
+    private boolean failed;
+    // false after a restart, when the queued upload is lost
+    private transient boolean active;
+
+    public AppetizePendingAction(File logFile) {
+        this.logFile = logFile.getPath();
+        this.active = true;
+    }
+
+    void failed() {
+        failed = true;
+        active = false;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public boolean isInterrupted() {
+        return !failed && !active;
+    }
+
+    public String getLog() throws IOException {
+        File file = new File(logFile);
+        return file.exists() ? FileUtils.readFileToString(file) : null;
+    }
+
+    @Override
+    public String getIconFileName() {
+        // don't show anything on left sidebar
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+}
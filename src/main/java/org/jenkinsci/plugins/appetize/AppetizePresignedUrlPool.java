@@ -0,0 +1,209 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps a few pre-signed upload URLs per platform fetched ahead of time, so a build can start
+ * uploading without waiting for Appetize.io. Every URL is handed out once; the pool is refilled
+ * in the background after each use. Each presign request returns one URL per platform, and the
+ * URL for the other platform is kept too rather than thrown away.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizePresignedUrlPool {
+    private static final Logger LOGGER = Logger.getLogger(AppetizePresignedUrlPool.class.getName());
+
+    // URLs must stay valid long enough for packaging and a slow upload
+    private static final long MIN_REMAINING_MILLIS = 15 * 60 * 1000;
+    // assumed lifetime of URLs that do not say when they expire
+    private static final long DEFAULT_LIFETIME_MILLIS = 30 * 60 * 1000;
+
+    private static final Pattern AMZ_DATE = Pattern.compile("[?&]X-Amz-Date=(\\d{8}T\\d{6}Z)");
+    private static final Pattern AMZ_EXPIRES = Pattern.compile("[?&]X-Amz-Expires=(\\d+)");
+    private static final Pattern EXPIRES = Pattern.compile("[?&]Expires=(\\d+)");
+
+    private static final ExecutorService refiller = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Appetize.io pre-signed URL refill"));
+
+    private final LinkedList<PooledUrl> iosUrls = new LinkedList<PooledUrl>();
+    private final LinkedList<PooledUrl> androidUrls = new LinkedList<PooledUrl>();
+    private boolean refilling;
+
+    private static class PooledUrl {
+        final String url;
+        final long expiresAt;
+
+        PooledUrl(String url, long fetchedAt) {
+            this.url = url;
+            this.expiresAt = getExpiry(url, fetchedAt);
+        }
+
+        boolean isUsable(long now) {
+            return expiresAt - now >= MIN_REMAINING_MILLIS;
+        }
+    }
+
+    /**
+     * Hands out a pre-signed URL for a platform, fetching one if the pool is empty.
+     * @param poolSize number of URLs per platform to keep ready, 0 to disable pooling
+     * @param appetize service used for a synchronous fetch
+     * @param retryPolicy settings for the background refill
+     * @return URL, or null if none could be fetched
+     */
+    public String take(String platform, int poolSize, AppetizeApiService appetize, AppetizeRetryPolicy retryPolicy) {
+        String url = poll(platform);
+        if (url == null) {
+            AppetizeApiService.AppetizePresignedUrls urls = appetize.getPresignedUrls();
+            if (urls == null) return null;
+
+            boolean ios = platform.equalsIgnoreCase("ios");
+            url = ios ? urls.iosUrl : urls.androidUrl;
+            if (poolSize > 0) add(ios ? "android" : "ios", ios ? urls.androidUrl : urls.iosUrl, poolSize);
+        }
+
+        if (poolSize > 0) refill(poolSize, retryPolicy, appetize.getApiUrl());
+        return url;
+    }
+
+    /**
+     * Puts back a URL that was taken but not used, e.g. because the app turned out to be unchanged.
+     * @param poolSize number of URLs per platform to keep ready, 0 to disable pooling
+     */
+    public void giveBack(String platform, String url, int poolSize) {
+        if (poolSize > 0) add(platform, url, poolSize);
+    }
+
+    private synchronized String poll(String platform) {
+        long now = System.currentTimeMillis();
+        LinkedList<PooledUrl> pool = getPool(platform);
+        while (!pool.isEmpty()) {
+            PooledUrl pooled = pool.removeFirst();
+            if (pooled.isUsable(now)) return pooled.url;
+        }
+        return null;
+    }
+
+    private synchronized void add(String platform, String url, int poolSize) {
+        if (url == null) return;
+        LinkedList<PooledUrl> pool = getPool(platform);
+        removeExpired(pool);
+        if (pool.size() < poolSize) {
+            pool.addLast(new PooledUrl(url, System.currentTimeMillis()));
+        }
+    }
+
+    private synchronized boolean isFull(int poolSize) {
+        removeExpired(iosUrls);
+        removeExpired(androidUrls);
+        return iosUrls.size() >= poolSize && androidUrls.size() >= poolSize;
+    }
+
+    /**
+     * Drops every pooled URL, e.g. after the API URL has changed.
+     */
+    public synchronized void clear() {
+        iosUrls.clear();
+        androidUrls.clear();
+    }
+
+    private void refill(final int poolSize, final AppetizeRetryPolicy retryPolicy, final String apiUrl) {
+        synchronized (this) {
+            if (refilling) return;
+            refilling = true;
+        }
+
+        refiller.submit(new Runnable() {
+            public void run() {
+                try {
+                    AppetizeApiService appetize = new AppetizeApiService(null, retryPolicy);
+                    appetize.setApiUrl(apiUrl);
+                    while (!isFull(poolSize)) {
+                        AppetizeApiService.AppetizePresignedUrls urls = appetize.getPresignedUrls();
+                        if (urls == null) {
+                            LOGGER.log(Level.FINE, "Failed to refill pre-signed URL pool");
+                            break;
+                        }
+                        add("ios", urls.iosUrl, poolSize);
+                        add("android", urls.androidUrl, poolSize);
+                    }
+                } finally {
+                    synchronized (AppetizePresignedUrlPool.this) {
+                        refilling = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private LinkedList<PooledUrl> getPool(String platform) {
+        return platform.equalsIgnoreCase("ios") ? iosUrls : androidUrls;
+    }
+
+    private static void removeExpired(LinkedList<PooledUrl> pool) {
+        long now = System.currentTimeMillis();
+        for (Iterator<PooledUrl> it = pool.iterator(); it.hasNext(); ) {
+            if (!it.next().isUsable(now)) it.remove();
+        }
+    }
+
+    /**
+     * Reads the expiry time of an S3 pre-signed URL, signature version 4 or 2.
+     */
+    static long getExpiry(String url, long fetchedAt) {
+        Matcher date = AMZ_DATE.matcher(url);
+        Matcher expires = AMZ_EXPIRES.matcher(url);
+        if (date.find() && expires.find()) {
+            try {
+                SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                return format.parse(date.group(1)).getTime() + Long.parseLong(expires.group(1)) * 1000;
+            } catch (ParseException e) {
+                return fetchedAt + DEFAULT_LIFETIME_MILLIS;
+            }
+        }
+
+        Matcher epoch = EXPIRES.matcher(url);
+        if (epoch.find()) {
+            return Long.parseLong(epoch.group(1)) * 1000;
+        }
+        return fetchedAt + DEFAULT_LIFETIME_MILLIS;
+    }
+}
@@ -24,7 +24,6 @@
 
 package org.jenkinsci.plugins.appetize;
 
-import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
 
@@ -39,8 +38,7 @@ public class AppetizeProjectAction implements Action {
     }
 
     public AppetizeBuildAction getLastAppetizeBuild() {
-        AbstractBuild<?,?> build = project.getLastSuccessfulBuild();
-        return build == null ? null : build.getAction(AppetizeBuildAction.class);
+        return AppetizeLatestBuild.get(project).getLatest();
     }
 
     @Override
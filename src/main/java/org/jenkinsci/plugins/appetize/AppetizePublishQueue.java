@@ -0,0 +1,92 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Publishes snapshots on the master after their builds have moved on, so that executors and
+ * workspaces are not held while waiting on the network.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizePublishQueue {
+    static final String LOG_FILE_NAME = "appetize-publish.log";
+    private static final String INDEXED_LOG_FILE_NAME = "appetize-publish-%d.log";
+    private static final int MAX_CONCURRENT_PUBLISHES = 4;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_PUBLISHES,
+            new NamingThreadFactory(new DaemonThreadFactory(), "Appetize.io publish queue"));
+
+    /**
+     * Queues a snapshot for publishing. The build gets an {@link AppetizePendingAction} until the
+     * upload finishes, and an {@link AppetizeBuildAction} once it succeeds.
+     * @param appPath path the snapshot was taken from
+     * @param index position from 1 among several apps published by the build, or 0 if it's the only one
+     */
+    public static void submit(final AppetizeRecorder.DescriptorImpl descriptor, final AbstractBuild<?, ?> build,
+                              final AppetizeSnapshot snapshot, final String apiTokenId, final String appPath,
+                              final int index) {
+        final File logFile = new File(build.getRootDir(),
+                index == 0 ? LOG_FILE_NAME : String.format(INDEXED_LOG_FILE_NAME, index));
+        final AppetizePendingAction pending = new AppetizePendingAction(logFile);
+        build.addAction(pending);
+        // supersede older builds still waiting in the queue right away
+        new AppetizePublisher(descriptor, build, TaskListener.NULL).claim(snapshot.getPlatform(), appPath, index);
+
+        executor.submit(new Runnable() {
+            public void run() {
+                StreamTaskListener listener = null;
+                try {
+                    listener = new StreamTaskListener(logFile);
+                    AppetizeBuildAction action = new AppetizePublisher(descriptor, build, listener)
+                            .publish(snapshot, apiTokenId, appPath, index);
+                    if (action != null) {
+                        build.getActions().remove(pending);
+                        build.addAction(action);
+                        AppetizeLatestBuild.get(build.getParent()).update(build);
+                    } else {
+                        pending.failed();
+                    }
+                    build.save();
+                } catch (Exception e) {
+                    pending.failed();
+                    if (listener != null) e.printStackTrace(listener.error("Error publishing to Appetize.io"));
+                } finally {
+                    snapshot.release();
+                    if (listener != null) listener.closeQuietly();
+                }
+            }
+        });
+    }
+}
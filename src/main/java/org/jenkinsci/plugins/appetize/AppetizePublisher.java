@@ -0,0 +1,866 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads an app from a build's workspace or from a snapshot to Appetize.io, or resumes an
+ * interrupted upload from its journal.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizePublisher {
+    // threads running the steps of publishes that don't need the app while the app is read and packaged
+    private static final int PREFETCH_THREADS = 4;
+    private static final ThreadPoolExecutor prefetcher = createPrefetcher();
+
+    /**
+     * @return a fixed number of threads that stop when idle, with a queue for steps that don't
+     * get one at once. A queued step that is needed runs on the thread that needs it.
+     */
+    private static ThreadPoolExecutor createPrefetcher() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Appetize.io publish"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private final AppetizeRecorder.DescriptorImpl descriptor;
+    private final AbstractBuild<?, ?> build;
+    private final TaskListener listener;
+    private final PrintStream logger;
+    // for the history entry of the published app
+    private long startedAt;
+    private long appSize = -1;
+    // where the time of the current publish goes
+    private AppetizeTimings timings = new AppetizeTimings();
+    // this build's claim on its app when newer builds supersede older ones, otherwise null
+    private AppetizeSupersession.Ticket supersession;
+
+    public AppetizePublisher(AppetizeRecorder.DescriptorImpl descriptor, AbstractBuild<?, ?> build, TaskListener listener) {
+        this.descriptor = descriptor;
+        this.build = build;
+        this.listener = listener;
+        this.logger = listener.getLogger();
+    }
+
+    /**
+     * @return the action to add to the build, or null on failure
+     */
+    public AppetizeBuildAction publish(String platform, String appPath, String apiTokenId) throws IOException, InterruptedException {
+        return publish(platform, appPath, apiTokenId, 0);
+    }
+
+    /**
+     * @param index position from 1 among several apps published by the build, or 0 if it's the only one
+     * @return the action to add to the build, or null on failure
+     */
+    public AppetizeBuildAction publish(String platform, String appPath, String apiTokenId, int index)
+            throws IOException, InterruptedException {
+        start();
+        AppetizeBuildAction action = null;
+        try {
+            action = publishFromWorkspace(platform, appPath, apiTokenId, index);
+            return action;
+        } finally {
+            finish(action);
+        }
+    }
+
+    private AppetizeBuildAction publishFromWorkspace(String platform, String appPath, String apiTokenId, int index)
+            throws IOException, InterruptedException {
+        FilePath appLocation = getAppLocation(platform, appPath);
+        if (appLocation == null) return null;
+        boolean uploadFromSlave = descriptor.isUploadFromSlave() && appLocation.isRemote();
+        if (!uploadFromSlave && !checkAppExists(platform, appLocation)) return null;
+
+        // credentials and an upload URL don't depend on the app, so they are fetched while the app
+        // is read and packaged; failures are still reported in the order of the steps below
+        Prefetch<String> apiTokenLookup = apiTokenLookup(apiTokenId);
+        apiTokenLookup.start();
+        // an app that may turn out to be unchanged needs no upload URL, so that waits for the cache
+        Prefetch<String> presign = null;
+        if (!descriptor.isSkipUnchangedUploads()) presign = startPresign(platform);
+        AppetizeUploadOptions options = descriptor.getUploadOptions();
+        boolean packFirst = !uploadFromSlave && AppetizeUploadCallable.isPackagedFirst(platform, options);
+        AppetizePackageBuffer packaged = null;
+        IOException packagingFailure = null;
+        try {
+            // skip the upload if the app is identical to the last one uploaded for this job
+            String contentDigest = null;
+            boolean needsDigest = descriptor.isSkipUnchangedUploads() || descriptor.isResumableUploads();
+            // a slave uploading directly measures the app itself while it packages it
+            boolean inspected = needsDigest || !uploadFromSlave;
+            if (inspected) {
+                AppetizeDigestCallable.Result app = inspect(platform, appLocation, needsDigest);
+                if (app != null) contentDigest = app.getDigest();
+            }
+            // an app that turns out to be unchanged doesn't need packaging at all
+            boolean mayBeCached = contentDigest != null && descriptor.isSkipUnchangedUploads();
+            if (presign == null && !mayBeCached) presign = startPresign(platform);
+            if (packFirst && !mayBeCached) {
+                try {
+                    packaged = AppetizeUploadCallable.pack(appLocation, options, timings);
+                } catch (IOException e) {
+                    packagingFailure = e;
+                }
+            }
+
+            // get api token
+            String apiToken = getApiToken(apiTokenLookup);
+            if (apiToken == null) return null;
+
+            String jobUUID = getJobUUID(platform, appPath, index);
+            if (jobUUID == null) return null;
+            claim(jobUUID);
+            if (isSuperseded()) return superseded(platform, appPath, index, null);
+
+            AppetizeBuildAction cached = lookupCached(platform, apiTokenId, jobUUID, contentDigest, appPath, index);
+            if (cached != null) return cached;
+            if (presign == null) presign = startPresign(platform);
+
+            if (packFirst && mayBeCached) {
+                try {
+                    packaged = AppetizeUploadCallable.pack(appLocation, options, timings);
+                } catch (IOException e) {
+                    packagingFailure = e;
+                }
+            }
+            if (packagingFailure != null) {
+                logger.println("Error packaging app: " + packagingFailure.getMessage());
+                timings.failed(AppetizeTimings.Phase.PACKAGING);
+                return null;
+            }
+
+            // get pre-signed url
+            String presignedUrl = getPresignedUrl(presign);
+            if (presignedUrl == null) return null;
+
+            AppetizeUploadJournal journal = null;
+            if (descriptor.isResumableUploads() && contentDigest != null) {
+                journal = AppetizeUploadJournal.create(build, platform, appPath, index, apiTokenId, contentDigest, presignedUrl);
+            }
+
+            // upload file; the slave validates the path itself when uploading directly
+            AppetizeApiService appetize = createApiService();
+            String uploadUrl = upload(appLocation, platform, presignedUrl, appetize, uploadFromSlave, packaged, journal);
+            if (uploadUrl == null) {
+                return isSuperseded() ? superseded(platform, appPath, index, journal) : null;
+            }
+            if (journal != null) journal.uploaded(uploadUrl);
+
+            return update(appetize, platform, apiToken, apiTokenId, jobUUID, uploadUrl, contentDigest, journal,
+                    appPath, index);
+        } finally {
+            if (packaged != null) packaged.dispose();
+            discardPresignedUrl(platform, presign);
+        }
+    }
+
+    /**
+     * Expands the artifacts whose paths are patterns into the apps they match.
+     * @return the apps to publish, or null if a pattern matches nothing
+     */
+    public List<AppetizeArtifact> resolve(List<AppetizeArtifact> artifacts) throws IOException, InterruptedException {
+        List<AppetizeArtifact> resolved = new ArrayList<AppetizeArtifact>();
+        Set<String> paths = new HashSet<String>();
+        for (AppetizeArtifact artifact : artifacts) {
+            List<AppetizeArtifact> matches = Collections.singletonList(artifact);
+            if (artifact.isPattern()) {
+                FilePath workspace = build.getWorkspace();
+                matches = workspace == null ? Collections.<AppetizeArtifact>emptyList() : artifact.expand(workspace);
+                if (matches.isEmpty()) {
+                    logger.println("Error: no apps match " + artifact.getAppPath());
+                    return null;
+                }
+            }
+            for (AppetizeArtifact match : matches) {
+                if (paths.add(match.getAppPath())) resolved.add(match);
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Copies the app out of the workspace, so that it can be published after the build has
+     * released its executor and workspace.
+     * @return the snapshot, or null on failure
+     */
+    public AppetizeSnapshot snapshot(String platform, String appPath) throws IOException, InterruptedException {
+        FilePath appLocation = getAppLocation(platform, appPath);
+        if (appLocation == null || !checkAppExists(platform, appLocation)) return null;
+
+        AppetizeDigestCallable.Result app = inspect(platform, appLocation, true);
+        if (app == null) return null;
+        return AppetizeSnapshot.create(appLocation, platform, app.getDigest(), app.getSize(), descriptor.getZipper());
+    }
+
+    /**
+     * Publishes a snapshot taken by {@link #snapshot}.
+     * @param appPath path the snapshot was taken from
+     * @param index position from 1 among several apps published by the build, or 0 if it's the only one
+     * @return the action to add to the build, or null on failure
+     */
+    public AppetizeBuildAction publish(AppetizeSnapshot snapshot, String apiTokenId, String appPath, int index)
+            throws IOException, InterruptedException {
+        start();
+        AppetizeBuildAction action = null;
+        try {
+            action = publishSnapshot(snapshot, apiTokenId, appPath, index);
+            return action;
+        } finally {
+            finish(action);
+        }
+    }
+
+    private AppetizeBuildAction publishSnapshot(AppetizeSnapshot snapshot, String apiTokenId, String appPath, int index)
+            throws IOException, InterruptedException {
+        appSize = snapshot.getAppSize();
+        timings.add(AppetizeTimings.Phase.PACKAGING, snapshot.getPackagingMillis());
+        String platform = snapshot.getPlatform();
+
+        // the snapshot is already packaged, but the lookups can still run side by side, unless the
+        // app may be unchanged and need no upload URL
+        Prefetch<String> apiTokenLookup = apiTokenLookup(apiTokenId);
+        apiTokenLookup.start();
+        Prefetch<String> presign = null;
+        if (!descriptor.isSkipUnchangedUploads() || snapshot.getDigest() == null) presign = startPresign(platform);
+        try {
+            return publishSnapshot(snapshot, apiTokenLookup, presign, apiTokenId, appPath, index);
+        } finally {
+            discardPresignedUrl(platform, presign);
+        }
+    }
+
+    private AppetizeBuildAction publishSnapshot(AppetizeSnapshot snapshot, Prefetch<String> apiTokenLookup,
+                                                Prefetch<String> presign, String apiTokenId, String appPath, int index)
+            throws IOException, InterruptedException {
+        String platform = snapshot.getPlatform();
+        String apiToken = getApiToken(apiTokenLookup);
+        if (apiToken == null) return null;
+
+        String jobUUID = getJobUUID(platform, appPath, index);
+        if (jobUUID == null) return null;
+        claim(jobUUID);
+        if (isSuperseded()) return superseded(platform, appPath, index, null);
+
+        AppetizeBuildAction cached = lookupCached(platform, apiTokenId, jobUUID, snapshot.getDigest(), appPath, index);
+        if (cached != null) return cached;
+
+        if (presign == null) {
+            presign = presignedUrlRequest(platform);
+            presign.run();
+        }
+        String presignedUrl = getPresignedUrl(presign);
+        if (presignedUrl == null) return null;
+
+        AppetizeApiService appetize = createApiService();
+
+        long uploadStart = System.currentTimeMillis();
+        long otherPhases = timings.getTotal();
+        String uploadUrl = null;
+        AppetizeUploadScheduler.Slot slot = acquireUploadSlot();
+        if (slot != null) {
+            try {
+                uploadUrl = AppetizeUploadCallable.uploadFile(snapshot.getFile(), platform, presignedUrl,
+                        descriptor.getUploadOptions(), appetize, logger, null);
+            } finally {
+                slot.release();
+            }
+        }
+        addUploadTime(uploadStart, otherPhases);
+        if (uploadUrl == null) {
+            if (isSuperseded()) return superseded(platform, appPath, index, null);
+            timings.failed(AppetizeTimings.Phase.UPLOAD);
+            return null;
+        }
+
+        return update(appetize, platform, apiToken, apiTokenId, jobUUID, uploadUrl, snapshot.getDigest(), null,
+                appPath, index);
+    }
+
+    /**
+     * Finishes an upload that was interrupted, reusing the parts that were already uploaded.
+     * The app in the workspace must be unchanged since the upload started.
+     * @return the action to add to the build, or null on failure
+     */
+    public AppetizeBuildAction resume(AppetizeUploadJournal journal) throws IOException, InterruptedException {
+        start();
+        AppetizeBuildAction action = null;
+        try {
+            action = resumeFromJournal(journal);
+            return action;
+        } finally {
+            finish(action);
+        }
+    }
+
+    private AppetizeBuildAction resumeFromJournal(AppetizeUploadJournal journal) throws IOException, InterruptedException {
+        String platform = journal.getPlatform();
+        String apiTokenId = journal.getApiTokenId();
+
+        Prefetch<String> apiTokenLookup = apiTokenLookup(apiTokenId);
+        apiTokenLookup.run();
+        String apiToken = getApiToken(apiTokenLookup);
+        if (apiToken == null) return null;
+
+        String jobUUID = getJobUUID(platform, journal.getAppPath(), journal.getIndex());
+        if (jobUUID == null) return null;
+        claim(jobUUID);
+        if (isSuperseded()) return superseded(platform, journal.getAppPath(), journal.getIndex(), journal);
+
+        AppetizeApiService appetize = createApiService();
+        String uploadUrl = journal.getUploadedUrl();
+        if (uploadUrl != null) {
+            logger.println("App was already uploaded, finishing the Appetize.io update");
+        } else {
+            FilePath workspace = build.getWorkspace();
+            if (workspace == null) {
+                logger.println("Error: the workspace of this build is no longer available");
+                return null;
+            }
+            FilePath appLocation = new FilePath(workspace, journal.getAppPath());
+            AppetizeDigestCallable.Result app = inspect(platform, appLocation, true);
+            if (app == null || !journal.getDigest().equals(app.getDigest())) {
+                logger.println("Error: the app in " + appLocation.getRemote() + " has changed since it was built");
+                return null;
+            }
+
+            boolean uploadFromSlave = descriptor.isUploadFromSlave() && appLocation.isRemote();
+            uploadUrl = upload(appLocation, platform, journal.getPresignedUrl(), appetize, uploadFromSlave, null, journal);
+            if (uploadUrl == null && isSuperseded()) {
+                return superseded(platform, journal.getAppPath(), journal.getIndex(), journal);
+            }
+            if (uploadUrl == null) {
+                // the pre-signed URLs may have expired, start over with new ones
+                logger.println("Retrying the upload with new upload URLs");
+                Prefetch<String> presign = presignedUrlRequest(platform);
+                presign.run();
+                String presignedUrl = getPresignedUrl(presign);
+                if (presignedUrl == null) return null;
+                journal.restart(presignedUrl);
+                uploadUrl = upload(appLocation, platform, journal.getPresignedUrl(), appetize, uploadFromSlave, null, journal);
+                if (uploadUrl == null) {
+                    return isSuperseded() ? superseded(platform, journal.getAppPath(), journal.getIndex(), journal) : null;
+                }
+            }
+            journal.uploaded(uploadUrl);
+        }
+
+        return update(appetize, platform, apiToken, apiTokenId, jobUUID, uploadUrl, journal.getDigest(), journal,
+                journal.getAppPath(), journal.getIndex());
+    }
+
+    private void start() {
+        startedAt = System.currentTimeMillis();
+        appSize = -1;
+        timings = new AppetizeTimings();
+        supersession = null;
+    }
+
+    /**
+     * Claims the app for this build if newer builds supersede older ones, so that older builds
+     * give up. Called when a publish is queued, and again when it starts.
+     */
+    public void claim(String platform, String appPath, int index) {
+        String jobUUID = getJobUUID(platform, appPath, index);
+        if (jobUUID != null) claim(jobUUID);
+    }
+
+    private void claim(String jobUUID) {
+        if (descriptor.isLatestWins()) {
+            supersession = AppetizeSupersession.get().claim(jobUUID, build.getNumber());
+        }
+    }
+
+    private boolean isSuperseded() {
+        return supersession != null && supersession.isSuperseded();
+    }
+
+    /**
+     * @return an action marking this build's app as superseded, which is not a failure
+     */
+    private AppetizeBuildAction superseded(String platform, String appPath, int index, AppetizeUploadJournal journal) {
+        int supersededBy = supersession.getSupersededBy();
+        logger.println("Build #" + supersededBy + " is publishing a newer version of this app, " +
+                "skipping the Appetize.io upload of this build");
+        // nothing left to resume
+        if (journal != null) journal.delete();
+
+        AppetizeBuildAction action = new AppetizeBuildAction(platform, null, null, null, null, build.getNumber(),
+                index > 0 ? appPath : null, index);
+        action.setSupersededBy(supersededBy);
+        return action;
+    }
+
+    /**
+     * Adds the publish to the metrics and logs where its time went.
+     */
+    private void finish(AppetizeBuildAction action) {
+        AppetizeMetrics.get().record(timings, action != null);
+        if (action != null && action.isSuperseded()) AppetizeMetrics.get().recordSuperseded();
+        String summary = timings.getSummary();
+        if (!summary.isEmpty()) logger.println("Appetize.io timings: " + summary);
+        if (action != null) action.setTimings(timings);
+    }
+
+    private AppetizeApiService createApiService() {
+        return createApiService(logger);
+    }
+
+    private AppetizeApiService createApiService(PrintStream logger) {
+        AppetizeApiService appetize = new AppetizeApiService(logger, descriptor.getRetryPolicy());
+        appetize.setTimings(timings);
+        appetize.setApiUrl(descriptor.getApiUrl());
+        appetize.setTransport(descriptor.getTransport());
+        appetize.setBandwidthLimiter(AppetizeUploadScheduler.get().getLimiter());
+        appetize.setSupersession(supersession);
+        return appetize;
+    }
+
+    /**
+     * Waits for the upload scheduler to let this build upload, at the priority of its job.
+     * @return the slot, or null if the build was superseded while waiting
+     */
+    private AppetizeUploadScheduler.Slot acquireUploadSlot() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        int priority = AppetizeUploadScheduler.getPriority(descriptor.getUploadPriorities(),
+                build.getProject().getFullName());
+        AppetizeUploadScheduler.Slot slot = AppetizeUploadScheduler.get().acquire(priority, logger, supersession);
+        timings.add(AppetizeTimings.Phase.QUEUE, System.currentTimeMillis() - start);
+        return slot;
+    }
+
+    /**
+     * Counts the time since an upload started as upload time, except for what was added to the
+     * other phases meanwhile, such as waiting for a slot, packaging or presigning multipart URLs.
+     * @param otherPhases total of the timings when the upload started
+     */
+    private void addUploadTime(long uploadStart, long otherPhases) {
+        long elapsed = System.currentTimeMillis() - uploadStart;
+        timings.add(AppetizeTimings.Phase.UPLOAD, elapsed - (timings.getTotal() - otherPhases));
+    }
+
+    /**
+     * @return the app location in the workspace, or null if the settings are invalid
+     */
+    private FilePath getAppLocation(String platform, String appPath) {
+        // check platform
+        if (!platform.equalsIgnoreCase("ios") && !platform.equalsIgnoreCase("android")) {
+            logger.println("Error: Invalid platform " + platform);
+            return null;
+        }
+
+        // check appPath exists
+        if (appPath == null || appPath.isEmpty()) {
+            logger.println("Error: Empty appPath");
+            return null;
+        }
+        return new FilePath(build.getWorkspace(), appPath);
+    }
+
+    private boolean checkAppExists(String platform, FilePath appLocation) throws IOException, InterruptedException {
+        if ((platform.equalsIgnoreCase("ios") && !appLocation.isDirectory()) ||
+                (platform.equalsIgnoreCase("android") && !appLocation.exists())) {
+            logger.println("Error: could not find app in " + appLocation.getRemote());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the app once for its size, what the bundle filter leaves out of it and, if asked, the
+     * digest of what would be uploaded.
+     * @return the measurements, or null if the app does not exist
+     */
+    private AppetizeDigestCallable.Result inspect(String platform, FilePath appLocation, boolean digest)
+            throws IOException, InterruptedException {
+        AppetizeBundleFilter filter = platform.equalsIgnoreCase("ios") ? descriptor.getBundleFilter() : null;
+        AppetizeDigestCallable.Result app = appLocation.act(new AppetizeDigestCallable(filter, digest));
+        if (app != null) {
+            appSize = app.getSize();
+            reportSlimming(app, appLocation.getName(), logger);
+        }
+        return app;
+    }
+
+    /**
+     * Logs how much of an iOS bundle the bundle filter leaves out.
+     */
+    static void reportSlimming(AppetizeDigestCallable.Result app, String name, PrintStream logger) {
+        if (app.getExcludedFiles() > 0) {
+            logger.println(String.format("Leaving %d files (%.1f MB) out of %s", app.getExcludedFiles(),
+                    app.getExcludedBytes() / (1024.0 * 1024.0), name));
+        }
+    }
+
+    /**
+     * @return an action for the last upload of this job if it had the same content and unchanged
+     * apps are skipped, otherwise null
+     */
+    private AppetizeBuildAction lookupCached(String platform, String apiTokenId, String jobUUID, String contentDigest,
+                                             String appPath, int index) {
+        if (!descriptor.isSkipUnchangedUploads() || contentDigest == null) return null;
+
+        AppetizeApiService.AppetizeUpdateResult cached = descriptor.getUploadCache().lookup(jobUUID,
+                contentDigest, platform, getCacheTokenId(apiTokenId));
+        if (cached == null) return null;
+
+        logger.println("App is unchanged since the last upload, skipping upload to Appetize.io");
+        logger.println("You can view your app at " + cached.publicURL);
+        logger.println("You can manage your app at " + cached.manageURL);
+
+        AppetizeBuildAction action = new AppetizeBuildAction(platform, cached.privateKey, cached.publicKey,
+                cached.publicURL, cached.manageURL, build.getNumber(), index > 0 ? appPath : null, index);
+        record(action, contentDigest);
+        return action;
+    }
+
+    /**
+     * @return a step that takes a pre-signed URL from the pool, fetching one if the pool is empty
+     */
+    private Prefetch<String> presignedUrlRequest(final String platform) {
+        return new Prefetch<String>() {
+            String call() {
+                AppetizeApiService appetize = createApiService(deferredLogger);
+                return descriptor.getPresignedUrlPool().take(platform, descriptor.getPresignedUrlPoolSize(), appetize,
+                        descriptor.getRetryPolicy());
+            }
+        };
+    }
+
+    private Prefetch<String> startPresign(String platform) {
+        Prefetch<String> presign = presignedUrlRequest(platform);
+        presign.start();
+        return presign;
+    }
+
+    /**
+     * Waits for a pre-signed URL, counting only the wait towards the presign phase.
+     * @return a pre-signed URL, or null on failure
+     */
+    private String getPresignedUrl(Prefetch<String> presign) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        String url = presign.await(logger);
+        timings.add(AppetizeTimings.Phase.PRESIGN, System.currentTimeMillis() - start);
+        if (url == null) {
+            logger.println("Error getting appetize.io upload URL");
+            timings.failed(AppetizeTimings.Phase.PRESIGN);
+        }
+        return url;
+    }
+
+    /**
+     * Puts a pre-signed URL that was fetched ahead but never used back in the pool, once it arrives.
+     * @param presign the request for the URL, or null if none was started
+     */
+    private void discardPresignedUrl(final String platform, Prefetch<String> presign) {
+        if (presign == null) return;
+        presign.discard(new AppetizeFuture.Listener<String>() {
+            public void onSuccess(String url) {
+                if (url != null) {
+                    descriptor.getPresignedUrlPool().giveBack(platform, url, descriptor.getPresignedUrlPoolSize());
+                }
+            }
+
+            public void onFailure(Throwable failure) {
+            }
+        });
+    }
+
+    /**
+     * @param packaged the app packaged ahead, or null to package it as part of the upload
+     * @return URL of the uploaded app, or null on failure
+     */
+    private String upload(FilePath appLocation, String platform, String presignedUrl, AppetizeApiService appetize,
+                          boolean uploadFromSlave, AppetizePackageBuffer packaged, AppetizeUploadJournal journal)
+            throws IOException, InterruptedException {
+        AppetizeUploadOptions options = descriptor.getUploadOptions();
+        long uploadStart = System.currentTimeMillis();
+        long otherPhases = timings.getTotal();
+        String url;
+        AppetizeUploadScheduler.Slot slot = acquireUploadSlot();
+        if (slot == null) return null;
+        try {
+            if (uploadFromSlave) {
+                // parts uploaded from a slave are not journaled, an interrupted upload starts over
+                // the slave measures the app unless the master already has
+                AppetizeUploadCallable.Result result = appLocation.act(new AppetizeUploadCallable(platform, presignedUrl,
+                        options, AppetizeApiService.resolveProxy(presignedUrl), listener,
+                        AppetizeUploadScheduler.get().getBandwidthShare(), appSize < 0));
+                if (result.getAppSize() >= 0) appSize = result.getAppSize();
+                timings.addAll(result.getTimings());
+                url = result.getUrl();
+            } else if (packaged != null) {
+                url = AppetizeUploadCallable.uploadPackage(packaged, platform, presignedUrl, options, appetize, logger,
+                        journal);
+            } else {
+                url = AppetizeUploadCallable.upload(appLocation, platform, presignedUrl, options, appetize, logger, journal);
+            }
+        } finally {
+            slot.release();
+        }
+        addUploadTime(uploadStart, otherPhases);
+        if (url == null) timings.failed(AppetizeTimings.Phase.UPLOAD);
+        return url;
+    }
+
+    private AppetizeBuildAction update(AppetizeApiService appetize, String platform, String apiToken, String apiTokenId,
+                                       String jobUUID, String uploadUrl, String contentDigest,
+                                       AppetizeUploadJournal journal, String appPath, int index) {
+        // hit api to create app
+        AppetizeApiService.AppetizeUpdateParams params = new AppetizeApiService.AppetizeUpdateParams();
+        params.url = uploadUrl;
+        params.platform = platform;
+        params.token = apiToken;
+        params.source = "appetize-jenkins-plugin";
+        params.jenkinsUUID = descriptor.getJenkinsUUID();
+        params.jobUUID = jobUUID;
+        params.buildNumber = build.getNumber();
+        // the upload is wasted, but the newer build's app must not be overwritten
+        if (isSuperseded()) return superseded(platform, appPath, index, journal);
+        long start = System.currentTimeMillis();
+        AppetizeApiService.AppetizeUpdateResult result = appetize.updateApp(params);
+        timings.add(AppetizeTimings.Phase.UPDATE, System.currentTimeMillis() - start);
+        if (result == null) {
+            logger.println("Error calling Appetize.io API");
+            timings.failed(AppetizeTimings.Phase.UPDATE);
+            return null;
+        }
+
+        if (journal != null) journal.delete();
+        if (contentDigest != null && descriptor.isSkipUnchangedUploads()) {
+            descriptor.getUploadCache().record(jobUUID,
+                    new AppetizeUploadCache.Entry(contentDigest, platform, getCacheTokenId(apiTokenId), result));
+        }
+
+        logger.println("Success uploading to Appetize.io");
+        logger.println("You can view your app at " + result.publicURL);
+        logger.println("You can manage your app at " + result.manageURL);
+
+        AppetizeBuildAction action = new AppetizeBuildAction(platform, result.privateKey, result.publicKey,
+                result.publicURL, result.manageURL, build.getNumber(), index > 0 ? appPath : null, index);
+        record(action, contentDigest);
+        return action;
+    }
+
+    /**
+     * Adds a published app to the job's history.
+     */
+    private void record(AppetizeBuildAction action, String contentDigest) {
+        AppetizeHistory.Entry entry = new AppetizeHistory.Entry();
+        entry.buildNumber = build.getNumber();
+        entry.timestamp = System.currentTimeMillis();
+        entry.platform = action.getPlatform();
+        entry.appPath = action.getAppPath();
+        entry.publicKey = action.getPublicKey();
+        entry.publicUrl = action.getPublicUrl();
+        entry.manageUrl = action.getManageUrl();
+        entry.digest = contentDigest;
+        entry.size = appSize;
+        entry.durationMillis = entry.timestamp - startedAt;
+        try {
+            AppetizeHistory.get(build.getParent()).append(entry);
+        } catch (IOException e) {
+            logger.println("Error recording the app in the Appetize.io history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a step that looks up the API token for a credentials id
+     */
+    private Prefetch<String> apiTokenLookup(final String apiTokenId) {
+        return new Prefetch<String>() {
+            String call() {
+                return lookupApiToken(apiTokenId);
+            }
+        };
+    }
+
+    /**
+     * Waits for the API token, counting only the wait towards the credentials phase.
+     * @return the API token, or null after logging why it couldn't be found
+     */
+    private String getApiToken(Prefetch<String> lookup) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        String apiToken = lookup.await(logger);
+        timings.add(AppetizeTimings.Phase.CREDENTIALS, System.currentTimeMillis() - start);
+        if (apiToken == null) {
+            logger.println("Error looking up appetize.io credentials. Please reconfigure the appetize.io post-build action");
+            timings.failed(AppetizeTimings.Phase.CREDENTIALS);
+        }
+        return apiToken;
+    }
+
+    /**
+     * @return the API token for a credentials id, the placeholder token if none is configured,
+     * or null if the credentials no longer exist
+     */
+    static String lookupApiToken(String apiTokenId) {
+        if (isPlaceholder(apiTokenId)) {
+            return AppetizeRecorder.PLACEHOLDER_API_TOKEN;
+        }
+
+        AppetizeCredentials credentials = AppetizeCredentialsIndex.get().lookup(apiTokenId);
+        return credentials != null ? credentials.getApiToken().getPlainText() : null;
+    }
+
+    private static boolean isPlaceholder(String apiTokenId) {
+        return apiTokenId == null || apiTokenId.isEmpty() || apiTokenId.equals(AppetizeRecorder.PLACEHOLDER_ID);
+    }
+
+    private static String getCacheTokenId(String apiTokenId) {
+        return isPlaceholder(apiTokenId) ? AppetizeRecorder.PLACEHOLDER_ID : apiTokenId;
+    }
+
+    /**
+     * @return a stable identifier for this job's app on Appetize.io, or null if SHA-256 is unavailable.
+     * When a build publishes several apps, each platform and path gets its own app.
+     */
+    private String getJobUUID(String platform, String appPath, int index) {
+        return getJobUUID(descriptor.getJenkinsUUID(), build.getProject().getName(), platform, appPath, index);
+    }
+
+    static String getJobUUID(String jenkinsUUID, String projectName, String platform, String appPath, int index) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (jenkinsUUID != null) digest.update(jenkinsUUID.getBytes());
+            if (projectName != null) digest.update(projectName.getBytes());
+            if (index > 0) digest.update(("/" + platform.toLowerCase() + "/" + appPath).getBytes(Charset.forName("UTF-8")));
+            if (jenkinsUUID != null) digest.update(jenkinsUUID.getBytes());
+
+            byte[] hash = digest.digest();
+            StringBuffer hexString = new StringBuffer();
+            for (int i = 0; i < hash.length; i++) {
+                String hex = Integer.toHexString(0xff & hash[i]);
+                if(hex.length() == 1) hexString.append('0');
+                hexString.append(hex);
+            }
+            return hexString.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A step of a publish that can start ahead of the steps before it. What it logs is held back
+     * until its result is used, so the build log reads as if the steps had run one after another.
+     */
+    private abstract static class Prefetch<T> implements Runnable {
+        private final AppetizeFuture<T> future = new AppetizeFuture<T>();
+        private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        protected final PrintStream deferredLogger = new PrintStream(log, true);
+        private boolean used;
+        private boolean started;
+
+        abstract T call() throws Exception;
+
+        /**
+         * Runs the step on this thread, unless it has already been started.
+         */
+        public void run() {
+            synchronized (this) {
+                if (started) return;
+                started = true;
+            }
+            try {
+                future.complete(call());
+            } catch (Throwable t) {
+                future.fail(t);
+            }
+        }
+
+        /**
+         * Runs the step in the background.
+         */
+        void start() {
+            prefetcher.execute(this);
+        }
+
+        /**
+         * Waits for the step and copies what it logged into the build log.
+         */
+        T await(PrintStream buildLog) throws IOException, InterruptedException {
+            // still queued behind other publishes' steps, so run it here rather than wait
+            run();
+            try {
+                T value = future.get();
+                markUsed();
+                return value;
+            } catch (ExecutionException e) {
+                markUsed();
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException)cause;
+                if (cause instanceof InterruptedException) throw (InterruptedException)cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+                if (cause instanceof Error) throw (Error)cause;
+                throw new IOException(cause);
+            } finally {
+                synchronized (log) {
+                    log.writeTo(buildLog);
+                    log.reset();
+                }
+            }
+        }
+
+        /**
+         * Lets a step whose result will never be used clean up after itself once it finishes.
+         */
+        void discard(AppetizeFuture.Listener<? super T> cleanup) {
+            if (markUsed()) future.addListener(cleanup);
+        }
+
+        /**
+         * @return false if the result was already used
+         */
+        private synchronized boolean markUsed() {
+            if (used) return false;
+            used = true;
+            return true;
+        }
+    }
+}
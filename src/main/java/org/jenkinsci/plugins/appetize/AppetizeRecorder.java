@@ -24,26 +24,24 @@
 
 package org.jenkinsci.plugins.appetize;
 
-import com.cloudbees.plugins.credentials.CredentialsProvider;
-import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import hudson.Extension;
-import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.*;
-import hudson.security.ACL;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
 import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Developers: Weiyin He and John Snyder
@@ -51,18 +49,34 @@ import java.util.*;
 public class AppetizeRecorder extends Recorder {
     // For production use, please request an API token. This token is for temporary use when
     // first setting up projects.
-    private static final String PLACEHOLDER_API_TOKEN = "tok_7vkmr5quwwjjxy4rv1q1h0rn08";
-    private static final String PLACEHOLDER_ID = "placeholder";
+    static final String PLACEHOLDER_API_TOKEN = "tok_7vkmr5quwwjjxy4rv1q1h0rn08";
+    static final String PLACEHOLDER_ID = "placeholder";
 
     private final String platform;
     private final String appPath;
     private final String apiTokenId;
+    private final boolean asynchronous;
+    // published along with the app above
+    private final List<AppetizeArtifact> apps;
 
-    @DataBoundConstructor
+    @Deprecated
     public AppetizeRecorder(String platform, String appPath, String apiTokenId) {
+        this(platform, appPath, apiTokenId, false);
+    }
+
+    @Deprecated
+    public AppetizeRecorder(String platform, String appPath, String apiTokenId, boolean asynchronous) {
+        this(platform, appPath, apiTokenId, asynchronous, null);
+    }
+
+    @DataBoundConstructor
+    public AppetizeRecorder(String platform, String appPath, String apiTokenId, boolean asynchronous,
+                            List<AppetizeArtifact> apps) {
         this.platform = platform;
         this.appPath = appPath;
         this.apiTokenId = apiTokenId;
+        this.asynchronous = asynchronous;
+        this.apps = apps == null || apps.isEmpty() ? null : new ArrayList<AppetizeArtifact>(apps);
     }
 
     public String getPlatform() {
@@ -77,6 +91,21 @@ public class AppetizeRecorder extends Recorder {
         return appPath;
     }
 
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    public List<AppetizeArtifact> getApps() {
+        return apps == null ? Collections.<AppetizeArtifact>emptyList() : Collections.unmodifiableList(apps);
+    }
+
+    private List<AppetizeArtifact> getArtifacts() {
+        List<AppetizeArtifact> artifacts = new ArrayList<AppetizeArtifact>();
+        artifacts.add(new AppetizeArtifact(platform, appPath));
+        artifacts.addAll(getApps());
+        return artifacts;
+    }
+
     @Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl)super.getDescriptor();
@@ -89,9 +118,10 @@ public class AppetizeRecorder extends Recorder {
 
     @Override
     public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
-        ArrayList<AppetizeProjectAction> collection = new ArrayList<AppetizeProjectAction>(1);
+        ArrayList<Action> collection = new ArrayList<Action>(2);
         AppetizeProjectAction action = new AppetizeProjectAction(project);
         if (action != null) collection.add(action);
+        collection.add(new AppetizeHistoryAction(project));
         return collection;
     }
 
@@ -100,137 +130,131 @@ public class AppetizeRecorder extends Recorder {
         // only run on SUCCESS
         if (!build.getResult().isBetterOrEqualTo(Result.SUCCESS)) return false;
 
-        PrintStream logger = listener.getLogger();
-
-        // check platform
-        if (!platform.equalsIgnoreCase("ios") && !platform.equalsIgnoreCase("android")) {
-            logger.println("Error: Invalid platform " + platform);
-            return false;
-        }
-
-        // check appPath exists
-        if (appPath == null || appPath.isEmpty()) {
-            logger.println("Error: Empty appPath");
-            return false;
-        }
-        FilePath appLocation = new FilePath(build.getWorkspace(), appPath);
-        if ((platform.equalsIgnoreCase("ios") && !appLocation.isDirectory()) ||
-                (platform.equalsIgnoreCase("android") && !appLocation.exists())) {
-            logger.println("Error: could not find app in " + appLocation.getRemote());
-            return false;
-        }
-
-        // get api token
-        String apiToken = null;
-        if (apiTokenId == null || apiTokenId.isEmpty() || apiTokenId.equals(PLACEHOLDER_ID)) {
-            apiToken = PLACEHOLDER_API_TOKEN;
-        } else {
-            List<AppetizeCredentials> credentialsList = CredentialsProvider.lookupCredentials(
-                    AppetizeCredentials.class, (Item)null,
-                    ACL.SYSTEM, Collections.<DomainRequirement>emptyList());
-            for(AppetizeCredentials credentials : credentialsList) {
-                if (apiTokenId.equals(credentials.getId())) {
-                    apiToken = credentials.getApiToken().getPlainText();
-                    break;
-                }
-            }
+        AppetizePublisher publisher = new AppetizePublisher(getDescriptor(), build, listener);
+        List<AppetizeArtifact> artifacts = publisher.resolve(getArtifacts());
+        if (artifacts == null) return false;
+
+        if (asynchronous) {
+            // copy the apps out of the workspace and let the build finish while they upload
+            for (int i = 0; i < artifacts.size(); i++) {
+                AppetizeArtifact artifact = artifacts.get(i);
+                AppetizeSnapshot snapshot = publisher.snapshot(artifact.getPlatform(), artifact.getAppPath());
+                if (snapshot == null) return false;
 
-            if (apiToken == null) {
-                logger.println("Error looking up appetize.io credentials. Please reconfigure the appetize.io post-build action");
-                return false;
+                AppetizePublishQueue.submit(getDescriptor(), build, snapshot, apiTokenId, artifact.getAppPath(),
+                        getIndex(artifacts, i));
             }
+            listener.getLogger().println("Queued for upload to Appetize.io, the link will appear on the build page when the upload finishes");
+            return true;
         }
 
-        // get pre-signed url
-        AppetizeApiService appetize = new AppetizeApiService(logger);
-        AppetizeApiService.AppetizePresignedUrls urls = appetize.getPresignedUrls();
-        if (urls == null) {
-            logger.println("Error getting appetize.io upload URL");
-            return false;
+        if (artifacts.size() == 1) {
+            AppetizeArtifact artifact = artifacts.get(0);
+            AppetizeBuildAction action = publisher.publish(artifact.getPlatform(), artifact.getAppPath(), apiTokenId);
+            if (action == null) return false;
+
+            // add action to build
+            build.addAction(action);
+            return true;
         }
 
-        // prepare upload
-        FilePath uploadFile;
-        File zipFile = null;
-        String uploadUrl = null;
-        if (platform.equalsIgnoreCase("ios")) {
-            try {
-                zipFile = File.createTempFile("appetize", ".zip");
-                uploadFile = new FilePath(zipFile);
-                appLocation.zip(uploadFile);
-            } catch (Exception e) {
-                logger.println("Error creating zip file in " + zipFile.toString());
-                return false;
+        boolean success = true;
+        for (AppetizeBuildAction action : new AppetizeBatchPublisher(getDescriptor(), build, listener).publish(artifacts, apiTokenId)) {
+            if (action != null) {
+                build.addAction(action);
+            } else {
+                success = false;
             }
-            uploadUrl = urls.iosUrl;
-        }
-        else {
-            uploadFile = appLocation;
-            uploadUrl = urls.androidUrl;
         }
+        return success;
+    }
 
-        // upload file
-        if (!appetize.uploadData(uploadFile.read(), uploadUrl)) {
-            return false;
-        }
+    /**
+     * @return 0 for a single app, so it stays the same app on Appetize.io as before, otherwise the position from 1
+     */
+    private static int getIndex(List<AppetizeArtifact> artifacts, int i) {
+        return artifacts.size() == 1 ? 0 : i + 1;
+    }
 
-        String jobUUID;
-        try {
-            String projectName = build.getProject().getName();
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            String jenkinsUUID = getDescriptor().getJenkinsUUID();
-            if (jenkinsUUID != null) digest.update(jenkinsUUID.getBytes());
-            if (projectName != null) digest.update(projectName.getBytes());
-            if (jenkinsUUID != null) digest.update(jenkinsUUID.getBytes());
+    /**
+     * How iOS .app bundles are packaged and sent to the pre-signed upload URL.
+     */
+    public enum IosUploadMode {
+        /** Zip into a temporary file on the master, then upload it. */
+        TEMP_FILE("Zip to a temporary file, then upload"),
+        /** Zip once to compute the length, then zip again straight into the request body. */
+        STREAM("Stream while zipping (two passes, known length)"),
+        /** Zip straight into the request body using chunked transfer encoding. */
+        STREAM_CHUNKED("Stream while zipping (chunked transfer encoding)"),
+        /** Zip into memory if the archive is small enough, otherwise into a temporary file, then upload it. */
+        MEMORY("Zip in memory, or to a temporary file if too large, then upload");
+
+        private final String displayName;
+
+        IosUploadMode(String displayName) {
+            this.displayName = displayName;
+        }
 
-            byte[] hash = digest.digest();
-            StringBuffer hexString = new StringBuffer();
-            for (int i = 0; i < hash.length; i++) {
-                String hex = Integer.toHexString(0xff & hash[i]);
-                if(hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
-            jobUUID = hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            return false;
-        }
-
-        // hit api to create app
-        AppetizeApiService.AppetizeUpdateParams params = new AppetizeApiService.AppetizeUpdateParams();
-        params.url = uploadUrl;
-        params.platform = platform;
-        params.token = apiToken;
-        params.source = "appetize-jenkins-plugin";
-        params.jenkinsUUID = getDescriptor().getJenkinsUUID();
-        params.jobUUID = jobUUID;
-        params.buildNumber = build.getNumber();
-        AppetizeApiService.AppetizeUpdateResult result = appetize.updateApp(params);
-        if (result == null) {
-            logger.println("Error calling Appetize.io API");
-            return false;
-        }
-
-        logger.println("Success uploading to Appetize.io");
-        logger.println("You can view your app at " + result.publicURL);
-        logger.println("You can manage your app at " + result.manageURL);
-
-        // add action to build
-        build.addAction(new AppetizeBuildAction(platform, result.privateKey, result.publicKey,
-                result.publicURL, result.manageURL, build.getNumber()));
-
-        return true;
+        public String getDisplayName() {
+            return displayName;
+        }
     }
 
     @Extension
     public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+        // S3 rejects multipart uploads with parts smaller than 5 MB
+        private static final int MIN_MULTIPART_PART_SIZE_MB = 5;
+        private static final int DEFAULT_MULTIPART_PARALLELISM = 4;
+        private static final int DEFAULT_PRESIGNED_URL_POOL_SIZE = 2;
+        private static final int DEFAULT_ARTIFACT_PARALLELISM = 4;
+
         private String jenkinsUUID;
+        private IosUploadMode iosUploadMode;
+        private boolean uploadFromSlave;
+        private boolean skipUnchangedUploads;
+        private boolean resumableUploads;
+        private int multipartPartSizeMb;
+        private int multipartParallelism = DEFAULT_MULTIPART_PARALLELISM;
+        private int maxAttempts = AppetizeRetryPolicy.DEFAULT_MAX_ATTEMPTS;
+        private int connectTimeoutSeconds = AppetizeRetryPolicy.DEFAULT_CONNECT_TIMEOUT_SECONDS;
+        private int readTimeoutSeconds = AppetizeRetryPolicy.DEFAULT_READ_TIMEOUT_SECONDS;
+        private int presignedUrlPoolSize = DEFAULT_PRESIGNED_URL_POOL_SIZE;
+        private int artifactParallelism = DEFAULT_ARTIFACT_PARALLELISM;
+        private int zipCompressionLevel = AppetizeZipper.DEFAULT_COMPRESSION_LEVEL;
+        private String zipStoredExtensions = AppetizeZipper.DEFAULT_STORED_EXTENSIONS;
+        private int zipThreads;
+        private boolean incrementalZip;
+        private String slimPresets;
+        private String slimExcludes;
+        private String slimIncludes;
+        private String keptLocalizations;
+        private String apiUrl;
+        private int maxConcurrentUploads;
+        private int uploadBandwidthMbps;
+        private String uploadPriorities;
+        private boolean latestWins;
+        private boolean asyncTransport;
+        private int inMemoryPackagingMb = AppetizePackageBuffer.DEFAULT_LIMIT_MB;
+        private int bufferPoolMb = AppetizeBufferPool.DEFAULT_MAX_MB;
+        private transient AppetizeUploadCache uploadCache;
+        private transient AppetizePresignedUrlPool presignedUrlPool;
 
         public DescriptorImpl() {
+            this(true);
+        }
+
+        /**
+         * @param load false for a scratch copy that submitted forms are tried on, which is never loaded or saved
+         */
+        private DescriptorImpl(boolean load) {
+            if (!load) return;
             load();
             if (jenkinsUUID == null || jenkinsUUID.isEmpty()) {
                 jenkinsUUID = UUID.randomUUID().toString();
                 save();
             }
+            configureScheduler();
+            configureBufferPool();
         }
 
         @Override
@@ -247,14 +271,254 @@ public class AppetizeRecorder extends Recorder {
             return jenkinsUUID;
         }
 
+        public IosUploadMode getIosUploadMode() {
+            return iosUploadMode == null ? IosUploadMode.TEMP_FILE : iosUploadMode;
+        }
+
+        public boolean isUploadFromSlave() {
+            return uploadFromSlave;
+        }
+
+        public boolean isSkipUnchangedUploads() {
+            return skipUnchangedUploads;
+        }
+
+        public boolean isResumableUploads() {
+            return resumableUploads;
+        }
+
+        public int getMultipartPartSizeMb() {
+            return multipartPartSizeMb;
+        }
+
+        public int getMultipartParallelism() {
+            return multipartParallelism;
+        }
+
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        public int getConnectTimeoutSeconds() {
+            return connectTimeoutSeconds;
+        }
+
+        public int getReadTimeoutSeconds() {
+            return readTimeoutSeconds;
+        }
+
+        public int getPresignedUrlPoolSize() {
+            return presignedUrlPoolSize;
+        }
+
+        public int getArtifactParallelism() {
+            return artifactParallelism;
+        }
+
+        public int getZipCompressionLevel() {
+            return zipCompressionLevel;
+        }
+
+        public String getZipStoredExtensions() {
+            return zipStoredExtensions;
+        }
+
+        public int getZipThreads() {
+            return zipThreads;
+        }
+
+        public boolean isIncrementalZip() {
+            return incrementalZip;
+        }
+
+        public String getSlimPresets() {
+            return slimPresets;
+        }
+
+        public String getSlimExcludes() {
+            return slimExcludes;
+        }
+
+        public String getSlimIncludes() {
+            return slimIncludes;
+        }
+
+        public String getKeptLocalizations() {
+            return keptLocalizations == null ? AppetizeBundleFilter.DEFAULT_KEPT_LOCALIZATIONS : keptLocalizations;
+        }
+
+        public int getInMemoryPackagingMb() {
+            return inMemoryPackagingMb;
+        }
+
+        public int getBufferPoolMb() {
+            return bufferPoolMb;
+        }
+
+        public int getMaxConcurrentUploads() {
+            return maxConcurrentUploads;
+        }
+
+        public int getUploadBandwidthMbps() {
+            return uploadBandwidthMbps;
+        }
+
+        public String getUploadPriorities() {
+            return uploadPriorities;
+        }
+
+        public boolean isLatestWins() {
+            return latestWins;
+        }
+
+        public boolean isAsyncTransport() {
+            return asyncTransport;
+        }
+
+        /**
+         * @return the transport for requests sent from the master
+         */
+        public AppetizeTransport getTransport() {
+            return asyncTransport ? AppetizeAsyncTransport.get() : AppetizeUrlConnectionTransport.get();
+        }
+
+        private void configureScheduler() {
+            AppetizeUploadScheduler.get().configure(maxConcurrentUploads, uploadBandwidthMbps * 1000L * 1000L / 8);
+        }
+
+        private void configureBufferPool() {
+            AppetizeBufferPool.get().configure(bufferPoolMb * 1024L * 1024L);
+        }
+
+        /**
+         * @return base URL of the Appetize.io API
+         */
+        public String getApiUrl() {
+            return AppetizeApiService.normalizeApiUrl(apiUrl);
+        }
+
+        synchronized AppetizePresignedUrlPool getPresignedUrlPool() {
+            if (presignedUrlPool == null) {
+                presignedUrlPool = new AppetizePresignedUrlPool();
+            }
+            return presignedUrlPool;
+        }
+
+        AppetizeRetryPolicy getRetryPolicy() {
+            return new AppetizeRetryPolicy(maxAttempts, connectTimeoutSeconds, readTimeoutSeconds);
+        }
+
+        AppetizeUploadOptions getUploadOptions() {
+            return new AppetizeUploadOptions(getIosUploadMode(), multipartPartSizeMb * 1024L * 1024L,
+                    multipartParallelism, getRetryPolicy(), getZipper(), getApiUrl(),
+                    inMemoryPackagingMb * 1024L * 1024L, bufferPoolMb * 1024L * 1024L);
+        }
+
+        AppetizeZipper getZipper() {
+            return new AppetizeZipper(zipCompressionLevel, zipStoredExtensions, zipThreads, incrementalZip,
+                    getBundleFilter());
+        }
+
+        /**
+         * @return what to leave out of iOS bundles, or null to upload them whole
+         */
+        AppetizeBundleFilter getBundleFilter() {
+            AppetizeBundleFilter filter = new AppetizeBundleFilter(slimPresets, slimExcludes, slimIncludes,
+                    getKeptLocalizations());
+            return filter.isEmpty() ? null : filter;
+        }
+
+        synchronized AppetizeUploadCache getUploadCache() {
+            if (uploadCache == null) {
+                uploadCache = AppetizeUploadCache.load(new File(Jenkins.getInstance().getRootDir(), "appetize-upload-cache.xml"));
+            }
+            return uploadCache;
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            // tried on a scratch copy first, so a form rejected part way through changes nothing
+            new DescriptorImpl(false).apply(json);
+            apply(json);
+            configureScheduler();
+            configureBufferPool();
+            save();
+            return super.configure(req, json);
+        }
+
+        private void apply(JSONObject json) throws FormException {
+            try {
+                iosUploadMode = IosUploadMode.valueOf(json.getString("iosUploadMode"));
+            } catch (IllegalArgumentException e) {
+                throw new FormException("Unknown iOS upload mode", "iosUploadMode");
+            }
+            uploadFromSlave = json.optBoolean("uploadFromSlave");
+            skipUnchangedUploads = json.optBoolean("skipUnchangedUploads");
+            resumableUploads = json.optBoolean("resumableUploads");
+            multipartPartSizeMb = json.optInt("multipartPartSizeMb");
+            if (multipartPartSizeMb > 0 && multipartPartSizeMb < MIN_MULTIPART_PART_SIZE_MB) {
+                throw new FormException("Part size must be at least " + MIN_MULTIPART_PART_SIZE_MB + " MB", "multipartPartSizeMb");
+            }
+            multipartParallelism = json.optInt("multipartParallelism");
+            if (multipartParallelism < 1) multipartParallelism = DEFAULT_MULTIPART_PARALLELISM;
+            maxAttempts = json.optInt("maxAttempts");
+            if (maxAttempts < 1) maxAttempts = AppetizeRetryPolicy.DEFAULT_MAX_ATTEMPTS;
+            connectTimeoutSeconds = json.optInt("connectTimeoutSeconds");
+            if (connectTimeoutSeconds < 1) connectTimeoutSeconds = AppetizeRetryPolicy.DEFAULT_CONNECT_TIMEOUT_SECONDS;
+            readTimeoutSeconds = json.optInt("readTimeoutSeconds");
+            if (readTimeoutSeconds < 1) readTimeoutSeconds = AppetizeRetryPolicy.DEFAULT_READ_TIMEOUT_SECONDS;
+            presignedUrlPoolSize = Math.max(0, json.optInt("presignedUrlPoolSize"));
+            artifactParallelism = json.optInt("artifactParallelism");
+            if (artifactParallelism < 1) artifactParallelism = DEFAULT_ARTIFACT_PARALLELISM;
+            zipCompressionLevel = json.optInt("zipCompressionLevel", AppetizeZipper.DEFAULT_COMPRESSION_LEVEL);
+            if (zipCompressionLevel < 0 || zipCompressionLevel > 9) {
+                throw new FormException("Compression level must be between 0 and 9", "zipCompressionLevel");
+            }
+            zipStoredExtensions = json.optString("zipStoredExtensions");
+            zipThreads = Math.max(0, json.optInt("zipThreads"));
+            incrementalZip = json.optBoolean("incrementalZip");
+            inMemoryPackagingMb = Math.max(0, json.optInt("inMemoryPackagingMb"));
+            bufferPoolMb = Math.max(0, json.optInt("bufferPoolMb"));
+            slimPresets = Util.fixEmptyAndTrim(json.optString("slimPresets"));
+            try {
+                AppetizeBundleFilter.parsePresets(slimPresets);
+            } catch (IllegalArgumentException e) {
+                throw new FormException(e.getMessage(), "slimPresets");
+            }
+            slimExcludes = Util.fixEmptyAndTrim(json.optString("slimExcludes"));
+            slimIncludes = Util.fixEmptyAndTrim(json.optString("slimIncludes"));
+            keptLocalizations = json.optString("keptLocalizations").trim();
+            String oldApiUrl = getApiUrl();
+            apiUrl = Util.fixEmptyAndTrim(json.optString("apiUrl"));
+            if (!getApiUrl().equals(oldApiUrl)) {
+                // pooled URLs were signed by the other service
+                getPresignedUrlPool().clear();
+            }
+            maxConcurrentUploads = Math.max(0, json.optInt("maxConcurrentUploads"));
+            uploadBandwidthMbps = Math.max(0, json.optInt("uploadBandwidthMbps"));
+            uploadPriorities = Util.fixEmptyAndTrim(json.optString("uploadPriorities"));
+            latestWins = json.optBoolean("latestWins");
+            asyncTransport = json.optBoolean("asyncTransport");
+            try {
+                AppetizeUploadScheduler.getPriority(uploadPriorities, "");
+            } catch (PatternSyntaxException e) {
+                throw new FormException("Invalid upload priority rule: " + e.getMessage(), "uploadPriorities");
+            }
+        }
+
+        public ListBoxModel doFillIosUploadModeItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (IosUploadMode mode : IosUploadMode.values()) {
+                items.add(mode.getDisplayName(), mode.name());
+            }
+            return items;
+        }
+
         public ListBoxModel doFillApiTokenIdItems() {
             ListBoxModel items = new ListBoxModel();
             items.add("Placeholder API Token", PLACEHOLDER_ID);
 
-            List<AppetizeCredentials> credentialsList = CredentialsProvider.lookupCredentials(
-                    AppetizeCredentials.class, (Item)null,
-                    ACL.SYSTEM, Collections.<DomainRequirement>emptyList());
-            for (AppetizeCredentials credentials : credentialsList) {
+            for (AppetizeCredentials credentials : AppetizeCredentialsIndex.get().all()) {
                 items.add(credentials.toString(), credentials.getId());
             }
 
@@ -0,0 +1,164 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TransientBuildActionFactory;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lets users finish an interrupted Appetize.io upload from the build page, using the
+ * upload journal and the app still in the workspace.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeResumeAction implements Action {
+    private static final String LOG_FILE_NAME = "appetize-resume.log";
+    private static final Set<String> running = Collections.synchronizedSet(new HashSet<String>());
+
+    private final AbstractBuild<?, ?> build;
+
+    public AppetizeResumeAction(AbstractBuild<?, ?> build) {
+        this.build = build;
+    }
+
+    public AbstractBuild<?, ?> getBuild() {
+        return build;
+    }
+
+    public boolean isRunning() {
+        return running.contains(getKey());
+    }
+
+    public String getLog() throws IOException {
+        File file = getLogFile();
+        return file.exists() ? FileUtils.readFileToString(file) : null;
+    }
+
+    public void doResume(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        build.getParent().checkPermission(Item.BUILD);
+        if (!"POST".equals(req.getMethod())) {
+            rsp.sendError(405);
+            return;
+        }
+
+        final String key = getKey();
+        if (running.add(key)) {
+            Thread thread = new Thread("Resuming Appetize.io upload for " + key) {
+                @Override
+                public void run() {
+                    try {
+                        resume();
+                    } finally {
+                        running.remove(key);
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        rsp.sendRedirect2(".");
+    }
+
+    private void resume() {
+        StreamTaskListener listener = null;
+        try {
+            listener = new StreamTaskListener(getLogFile());
+            List<AppetizeUploadJournal> journals = AppetizeUploadJournal.loadAll(build);
+            if (journals.isEmpty()) {
+                listener.getLogger().println("There is no unfinished upload for this build");
+                return;
+            }
+
+            AppetizeRecorder.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(AppetizeRecorder.DescriptorImpl.class);
+            AppetizePublisher publisher = new AppetizePublisher(descriptor, build, listener);
+            for (AppetizeUploadJournal journal : journals) {
+                if (journals.size() > 1) listener.getLogger().println("Resuming the upload of " + journal.getAppPath());
+                AppetizeBuildAction action = publisher.resume(journal);
+                if (action != null) {
+                    build.addAction(action);
+                    build.save();
+                    AppetizeLatestBuild.get(build.getParent()).update(build);
+                }
+            }
+        } catch (Exception e) {
+            if (listener != null) e.printStackTrace(listener.error("Error resuming the Appetize.io upload"));
+        } finally {
+            if (listener != null) listener.closeQuietly();
+        }
+    }
+
+    private String getKey() {
+        return build.getParent().getFullName() + "#" + build.getNumber();
+    }
+
+    private File getLogFile() {
+        return new File(build.getRootDir(), LOG_FILE_NAME);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "/plugin/appetize/images/logo-96.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Resume Appetize.io Upload";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "appetize-resume";
+    }
+
+    @Extension
+    public static class Factory extends TransientBuildActionFactory {
+        @Override
+        public Collection<? extends Action> createFor(Run target) {
+            // journals are deleted once their app is published, so this also covers builds that
+            // published some of several apps
+            if (target instanceof AbstractBuild && !target.isBuilding() && AppetizeUploadJournal.exists(target)) {
+                return Collections.singleton(new AppetizeResumeAction((AbstractBuild<?, ?>)target));
+            }
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * Timeouts and retry settings for requests to Appetize.io and the upload URLs.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeRetryPolicy implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 30;
+    public static final int DEFAULT_READ_TIMEOUT_SECONDS = 120;
+
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+    // longest Retry-After we are willing to wait for
+    private static final long MAX_RETRY_AFTER_MILLIS = 5 * 60 * 1000;
+
+    private static final Random random = new Random();
+
+    private final int maxAttempts;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    public AppetizeRetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_CONNECT_TIMEOUT_SECONDS, DEFAULT_READ_TIMEOUT_SECONDS);
+    }
+
+    public AppetizeRetryPolicy(int maxAttempts, int connectTimeoutSeconds, int readTimeoutSeconds) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.connectTimeoutMillis = connectTimeoutSeconds * 1000;
+        this.readTimeoutMillis = readTimeoutSeconds * 1000;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * Returns how long to wait before the next attempt: the server's Retry-After if it sent one,
+     * otherwise exponential backoff with jitter so that builds failing together do not retry together.
+     * @param attempt number of the attempt that just failed, starting at 1
+     * @param retryAfterMillis delay requested by the server, or 0
+     */
+    public long getDelayMillis(int attempt, long retryAfterMillis) {
+        if (retryAfterMillis > 0) {
+            return Math.min(retryAfterMillis, MAX_RETRY_AFTER_MILLIS);
+        }
+
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        synchronized (random) {
+            return backoff / 2 + (long)(random.nextDouble() * backoff / 2);
+        }
+    }
+}
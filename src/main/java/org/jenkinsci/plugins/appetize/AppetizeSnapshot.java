@@ -0,0 +1,181 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.FilePath;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A copy of an app on the master, named by its content digest, so it can be published after the
+ * build has released its workspace. Builds of identical apps share one copy, which is deleted
+ * once the last of them has been published. iOS apps are stored zipped.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeSnapshot {
+    private static final Logger LOGGER = Logger.getLogger(AppetizeSnapshot.class.getName());
+
+    private static final Map<String, Integer> references = new HashMap<String, Integer>();
+
+    private final String platform;
+    private final String digest;
+    private final File file;
+    private final long appSize;
+    // time spent zipping or copying, 0 if an identical copy was already stored
+    private long packagingMillis;
+    private boolean released;
+
+    private AppetizeSnapshot(String platform, String digest, File file, long appSize) {
+        this.platform = platform;
+        this.digest = digest;
+        this.file = file;
+        this.appSize = appSize;
+    }
+
+    /**
+     * Copies an app from the workspace, unless an identical app is already stored.
+     * @param appSize size of the app in the workspace, as measured with its digest
+     */
+    public static AppetizeSnapshot create(FilePath appLocation, String platform, String digest, long appSize,
+                                          AppetizeZipper zipper)
+            throws IOException, InterruptedException {
+        File directory = getDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        boolean ios = platform.equalsIgnoreCase("ios");
+        File file = new File(directory, digest + (ios ? ".zip" : ".apk"));
+        AppetizeSnapshot snapshot = new AppetizeSnapshot(platform, digest, file, appSize);
+
+        synchronized (references) {
+            Integer count = references.get(file.getName());
+            references.put(file.getName(), count == null ? 1 : count + 1);
+            if (count != null && file.exists()) return snapshot;
+        }
+
+        long start = System.currentTimeMillis();
+        File temp = File.createTempFile(digest, ".tmp", directory);
+        try {
+            if (ios) {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+                try {
+                    zipper.zip(appLocation, out);
+                } finally {
+                    out.close();
+                }
+            } else {
+                appLocation.copyTo(new FilePath(temp));
+            }
+            synchronized (references) {
+                if (!file.exists() && !temp.renameTo(file)) {
+                    throw new IOException("Could not rename " + temp + " to " + file);
+                }
+            }
+            snapshot.packagingMillis = System.currentTimeMillis() - start;
+        } catch (IOException e) {
+            snapshot.release();
+            throw e;
+        } catch (InterruptedException e) {
+            snapshot.release();
+            throw e;
+        } finally {
+            temp.delete();
+        }
+        return snapshot;
+    }
+
+    private static File getDirectory() {
+        return new File(Jenkins.getInstance().getRootDir(), "appetize-snapshots");
+    }
+
+    /**
+     * Deletes the copies, and their partly written temporary files, left behind by publishes that
+     * were queued or running when Jenkins stopped. The queue is not kept across restarts, so no
+     * publish will ever use them.
+     */
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void deleteOrphans() {
+        File[] files = getDirectory().listFiles();
+        if (files == null) return;
+        synchronized (references) {
+            for (File file : files) {
+                if (references.containsKey(file.getName())) continue;
+                if (!file.delete()) LOGGER.warning("Could not delete " + file);
+            }
+        }
+    }
+
+    public String getPlatform() {
+        return platform;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return size of the app in the workspace, which for iOS is the unzipped size
+     */
+    public long getAppSize() {
+        return appSize;
+    }
+
+    public long getPackagingMillis() {
+        return packagingMillis;
+    }
+
+    /**
+     * Deletes the copy if no other build is using it.
+     */
+    public void release() {
+        synchronized (references) {
+            if (released) return;
+            released = true;
+
+            Integer count = references.get(file.getName());
+            if (count == null || count <= 1) {
+                references.remove(file.getName());
+                file.delete();
+            } else {
+                references.put(file.getName(), count - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The newest build publishing to each Appetize.io app, so that older builds still queued or
+ * uploading can give up instead of overwriting it moments before it arrives. Apps are keyed by
+ * job UUID, which also tells apart the apps of a build that publishes several.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public final class AppetizeSupersession {
+    private static final AppetizeSupersession INSTANCE = new AppetizeSupersession();
+
+    // one entry per app, kept so that a late older build is still recognized as superseded
+    private final Map<String, Integer> newest = new HashMap<String, Integer>();
+
+    private AppetizeSupersession() {
+    }
+
+    public static AppetizeSupersession get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records that a build is publishing to an app, superseding any older build publishing to it.
+     * Claiming again for the same build is harmless.
+     * @param jobUUID the app
+     * @return a ticket telling the build whether it has been superseded since
+     */
+    public Ticket claim(String jobUUID, int buildNumber) {
+        synchronized (this) {
+            Integer current = newest.get(jobUUID);
+            if (current == null || current < buildNumber) newest.put(jobUUID, buildNumber);
+        }
+        // older builds waiting for an upload slot can leave the queue
+        AppetizeUploadScheduler.get().wakeUp();
+        return new Ticket(jobUUID, buildNumber);
+    }
+
+    private synchronized int getNewest(String jobUUID) {
+        Integer current = newest.get(jobUUID);
+        return current == null ? 0 : current;
+    }
+
+    /**
+     * A build's claim on an app
+     */
+    public final class Ticket {
+        private final String jobUUID;
+        private final int buildNumber;
+
+        private Ticket(String jobUUID, int buildNumber) {
+            this.jobUUID = jobUUID;
+            this.buildNumber = buildNumber;
+        }
+
+        public boolean isSuperseded() {
+            return getNewest(jobUUID) > buildNumber;
+        }
+
+        /**
+         * @return number of the build that superseded this one, or 0 if it hasn't been
+         */
+        public int getSupersededBy() {
+            int current = getNewest(jobUUID);
+            return current > buildNumber ? current : 0;
+        }
+
+        /**
+         * @throws SupersededException if a newer build has claimed the app
+         */
+        public void check() throws SupersededException {
+            int supersededBy = getSupersededBy();
+            if (supersededBy > 0) throw new SupersededException(supersededBy);
+        }
+    }
+
+    /**
+     * Stops a request of a build that has been superseded. Not retried.
+     */
+    public static class SupersededException extends IOException {
+        SupersededException(int supersededBy) {
+            super("Superseded by build #" + supersededBy);
+        }
+    }
+}
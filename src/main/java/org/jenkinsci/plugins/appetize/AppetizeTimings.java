@@ -0,0 +1,159 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.Util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the time of one publish went, phase by phase, along with the bytes uploaded and the
+ * number of retried requests. Filled in by the publisher, the API service and the uploaders,
+ * including on a slave, kept on the {@link AppetizeBuildAction} and added to
+ * {@link AppetizeMetrics}.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeTimings implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Phase {
+        CREDENTIALS("credential lookup"),
+        PRESIGN("presign"),
+        PACKAGING("packaging"),
+        QUEUE("waiting for an upload slot"),
+        UPLOAD("upload"),
+        UPDATE("update");
+
+        private final String displayName;
+
+        Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private final EnumMap<Phase, Long> millis = new EnumMap<Phase, Long>(Phase.class);
+    private long bytesUploaded;
+    private int retries;
+    // phase a failed publish stopped at, if any
+    private Phase failedPhase;
+
+    public synchronized void add(Phase phase, long elapsedMillis) {
+        Long total = millis.get(phase);
+        millis.put(phase, (total == null ? 0 : total) + Math.max(0, elapsedMillis));
+    }
+
+    /**
+     * Adds what was measured elsewhere, e.g. on a slave.
+     */
+    public synchronized void addAll(AppetizeTimings other) {
+        if (other == null) return;
+        for (Map.Entry<Phase, Long> entry : other.getMillis().entrySet()) {
+            add(entry.getKey(), entry.getValue());
+        }
+        bytesUploaded += other.getBytesUploaded();
+        retries += other.getRetries();
+    }
+
+    public synchronized void addBytesUploaded(long bytes) {
+        bytesUploaded += bytes;
+    }
+
+    public synchronized void addRetry() {
+        retries++;
+    }
+
+    public synchronized void failed(Phase phase) {
+        if (failedPhase == null) failedPhase = phase;
+    }
+
+    /**
+     * @return milliseconds spent in a phase, or -1 if it didn't happen
+     */
+    public synchronized long get(Phase phase) {
+        Long total = millis.get(phase);
+        return total == null ? -1 : total;
+    }
+
+    public synchronized Map<Phase, Long> getMillis() {
+        return new EnumMap<Phase, Long>(millis);
+    }
+
+    /**
+     * @return total milliseconds measured so far in all phases
+     */
+    public synchronized long getTotal() {
+        long total = 0;
+        for (long phaseMillis : millis.values()) {
+            total += phaseMillis;
+        }
+        return total;
+    }
+
+    public synchronized long getBytesUploaded() {
+        return bytesUploaded;
+    }
+
+    /**
+     * @return bytes per second while uploading, or -1 if nothing was uploaded
+     */
+    public synchronized long getUploadThroughput() {
+        Long uploadMillis = millis.get(Phase.UPLOAD);
+        if (uploadMillis == null || uploadMillis <= 0 || bytesUploaded == 0) return -1;
+        return bytesUploaded * 1000 / uploadMillis;
+    }
+
+    public synchronized int getRetries() {
+        return retries;
+    }
+
+    public synchronized Phase getFailedPhase() {
+        return failedPhase;
+    }
+
+    /**
+     * @return e.g. "packaging 3.2 sec, upload 12 sec (4.1 MB/s), update 0.42 sec, 1 retry"
+     */
+    public synchronized String getSummary() {
+        List<String> parts = new ArrayList<String>();
+        for (Map.Entry<Phase, Long> entry : millis.entrySet()) {
+            String part = entry.getKey().getDisplayName() + " " + Util.getTimeSpanString(entry.getValue());
+            if (entry.getKey() == Phase.UPLOAD && getUploadThroughput() >= 0) {
+                part += String.format(" (%.1f MB/s)", getUploadThroughput() / (1024.0 * 1024.0));
+            }
+            parts.add(part);
+        }
+        if (retries > 0) parts.add(retries + (retries == 1 ? " retry" : " retries"));
+        return Util.join(parts, ", ");
+    }
+}
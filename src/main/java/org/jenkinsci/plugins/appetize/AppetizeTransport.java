@@ -0,0 +1,235 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sends single HTTP requests for {@link AppetizeApiService}, which takes care of retries, the
+ * circuit breaker and parsing. A response with any status is a successful send; only failures to
+ * get a response fail the future.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public interface AppetizeTransport {
+    /**
+     * @param proxy proxy to use, or null for the Jenkins global proxy
+     * @param retryPolicy connect and read timeouts
+     */
+    AppetizeFuture<Response> send(Request request, Proxy proxy, AppetizeRetryPolicy retryPolicy);
+
+    /**
+     * @return true if requests are sent without holding the calling thread, false if the future
+     * is already complete when {@link #send} returns
+     */
+    boolean isAsynchronous();
+
+    /**
+     * Writes a body that is produced while it is sent, such as a zip being compressed
+     */
+    interface StreamBody {
+        /**
+         * @return number of bytes written
+         */
+        long writeTo(OutputStream out) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Wraps the stream an upload is written to, e.g. to throttle it
+     */
+    interface UploadFilter {
+        OutputStream filter(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A request with an optional body, which is either bytes, a region of a file, or a stream.
+     * Only bytes and files can be sent by every transport.
+     */
+    class Request {
+        private final String method;
+        private final URL url;
+        private final Map<String, String> headers = new LinkedHashMap<String, String>();
+        private byte[] bytes;
+        private File file;
+        private long offset;
+        private long length = -1;
+        private StreamBody stream;
+        private boolean chunked;
+        private UploadFilter uploadFilter;
+        private AppetizeSupersession.Ticket supersession;
+
+        public Request(String method, URL url) {
+            this.method = method;
+            this.url = url;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        public void setBody(byte[] bytes) {
+            this.bytes = bytes;
+            this.length = bytes.length;
+        }
+
+        public void setBody(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @param length length of the body, or -1 if it is not known
+         * @param chunked true to send a body of unknown length with chunked transfer encoding,
+         *                false to buffer it to find its length
+         */
+        public void setBody(StreamBody stream, long length, boolean chunked) {
+            this.stream = stream;
+            this.length = length;
+            this.chunked = chunked;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return length of the body, -1 if it is not known or there is none
+         */
+        public long getLength() {
+            return length;
+        }
+
+        public StreamBody getStream() {
+            return stream;
+        }
+
+        public boolean isChunked() {
+            return chunked;
+        }
+
+        public boolean hasBody() {
+            return bytes != null || file != null || stream != null;
+        }
+
+        public boolean isStreamed() {
+            return stream != null;
+        }
+
+        public UploadFilter getUploadFilter() {
+            return uploadFilter;
+        }
+
+        /**
+         * @param uploadFilter wraps the body stream of transports that write it through a stream
+         */
+        public void setUploadFilter(UploadFilter uploadFilter) {
+            this.uploadFilter = uploadFilter;
+        }
+
+        public AppetizeSupersession.Ticket getSupersession() {
+            return supersession;
+        }
+
+        /**
+         * @param supersession checked while the body is sent by transports that don't write it
+         *                     through the upload filter, null to never stop
+         */
+        public void setSupersession(AppetizeSupersession.Ticket supersession) {
+            this.supersession = supersession;
+        }
+    }
+
+    /**
+     * A response of any status, read completely
+     */
+    class Response {
+        private final int status;
+        private final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        private final String body;
+        private final long bytesSent;
+
+        /**
+         * @param body response body, or null if there was none
+         * @param bytesSent length of the request body that was sent
+         */
+        public Response(int status, Map<String, String> headers, String body, long bytesSent) {
+            this.status = status;
+            this.headers.putAll(headers);
+            this.body = body;
+            this.bytesSent = bytesSent;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public boolean isSuccessful() {
+            return status >= 200 && status <= 299;
+        }
+
+        /**
+         * @return value of a header, case insensitively, or null
+         */
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.XmlFile;
+import hudson.util.Secret;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the content digest of the last app uploaded for each job, so an unchanged app can
+ * reuse the previous Appetize.io result instead of being uploaded again. Only the most recent upload
+ * per job is kept, since that is what the job's Appetize.io app currently contains.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeUploadCache {
+    private static final Logger LOGGER = Logger.getLogger(AppetizeUploadCache.class.getName());
+
+    private transient XmlFile file;
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    public static class Entry {
+        private String digest;
+        private String platform;
+        private String apiTokenId;
+        private String publicKey;
+        // encrypted in the file like other secrets of JENKINS_HOME
+        private Secret privateKey;
+        private String publicURL;
+        private String appURL;
+        private String manageURL;
+        // the whole result, private key in plain text, as saved before the fields above
+        @Deprecated
+        private AppetizeApiService.AppetizeUpdateResult result;
+
+        public Entry(String digest, String platform, String apiTokenId, AppetizeApiService.AppetizeUpdateResult result) {
+            this.digest = digest;
+            this.platform = platform;
+            this.apiTokenId = apiTokenId;
+            setResult(result);
+        }
+
+        private void setResult(AppetizeApiService.AppetizeUpdateResult result) {
+            publicKey = result.publicKey;
+            privateKey = result.privateKey == null ? null : Secret.fromString(result.privateKey);
+            publicURL = result.publicURL;
+            appURL = result.appURL;
+            manageURL = result.manageURL;
+        }
+
+        AppetizeApiService.AppetizeUpdateResult getResult() {
+            AppetizeApiService.AppetizeUpdateResult result = new AppetizeApiService.AppetizeUpdateResult();
+            result.publicKey = publicKey;
+            result.privateKey = privateKey == null ? null : privateKey.getPlainText();
+            result.publicURL = publicURL;
+            result.appURL = appURL;
+            result.manageURL = manageURL;
+            return result;
+        }
+
+        /**
+         * Moves a result saved whole by an older version into the fields.
+         * @return true if the entry needs saving again
+         */
+        private boolean migrate() {
+            if (result == null) return false;
+            setResult(result);
+            result = null;
+            return true;
+        }
+
+        boolean matches(String digest, String platform, String apiTokenId) {
+            return this.digest.equals(digest) && this.platform.equalsIgnoreCase(platform) &&
+                    (this.apiTokenId == null ? apiTokenId == null : this.apiTokenId.equals(apiTokenId));
+        }
+    }
+
+    public static AppetizeUploadCache load(File file) {
+        AppetizeUploadCache cache = new AppetizeUploadCache();
+        cache.file = new XmlFile(file);
+        if (cache.file.exists()) {
+            try {
+                cache.file.unmarshal(cache);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+            }
+        }
+        if (cache.entries == null) cache.entries = new HashMap<String, Entry>();
+        boolean migrated = false;
+        for (Entry entry : cache.entries.values()) {
+            migrated |= entry.migrate();
+        }
+        // don't leave older versions' private keys in plain text
+        if (migrated) cache.save();
+        return cache;
+    }
+
+    /**
+     * @return the result of the last upload for this job if it had the same content, otherwise null
+     */
+    public synchronized AppetizeApiService.AppetizeUpdateResult lookup(String jobUUID, String digest,
+                                                                      String platform, String apiTokenId) {
+        Entry entry = entries.get(jobUUID);
+        return entry != null && entry.matches(digest, platform, apiTokenId) ? entry.getResult() : null;
+    }
+
+    public synchronized void record(String jobUUID, Entry entry) {
+        entries.put(jobUUID, entry);
+        save();
+    }
+
+    private synchronized void save() {
+        try {
+            file.write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+        }
+    }
+}
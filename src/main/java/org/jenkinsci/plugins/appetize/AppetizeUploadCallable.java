@@ -0,0 +1,271 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.net.Proxy;
+import java.net.SocketAddress;
+
+/**
+ * Validates, packages and uploads an app in a single call on the node that holds the workspace,
+ * so the app bytes go straight from the slave to the pre-signed URL instead of through the master.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeUploadCallable implements FilePath.FileCallable<AppetizeUploadCallable.Result> {
+    private static final long serialVersionUID = 1L;
+
+    private final String platform;
+    private final String uploadUrl;
+    private final AppetizeUploadOptions options;
+    private final Proxy.Type proxyType;
+    private final SocketAddress proxyAddress;
+    private final TaskListener listener;
+    // this upload's share of the bandwidth cap, 0 for no limit
+    private final long bytesPerSecond;
+    private final boolean measure;
+
+    public AppetizeUploadCallable(String platform, String uploadUrl, AppetizeUploadOptions options,
+                                  Proxy proxy, TaskListener listener) {
+        this(platform, uploadUrl, options, proxy, listener, 0);
+    }
+
+    /**
+     * @param bytesPerSecond bandwidth of this upload, 0 for no limit
+     */
+    public AppetizeUploadCallable(String platform, String uploadUrl, AppetizeUploadOptions options,
+                                  Proxy proxy, TaskListener listener, long bytesPerSecond) {
+        this(platform, uploadUrl, options, proxy, listener, bytesPerSecond, false);
+    }
+
+    /**
+     * @param bytesPerSecond bandwidth of this upload, 0 for no limit
+     * @param measure true to also measure the app and report what the bundle filter leaves out,
+     *                if the master has not already done so
+     */
+    public AppetizeUploadCallable(String platform, String uploadUrl, AppetizeUploadOptions options,
+                                  Proxy proxy, TaskListener listener, long bytesPerSecond, boolean measure) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.measure = measure;
+        this.platform = platform;
+        this.uploadUrl = uploadUrl;
+        this.options = options;
+        // null leaves the proxy to the JVM settings of the slave
+        this.proxyType = proxy == null ? null : proxy.type();
+        this.proxyAddress = proxy == null ? null : proxy.address();
+        this.listener = listener;
+    }
+
+    /**
+     * What an upload from a slave sends back to the master
+     */
+    public static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String url;
+        private final AppetizeTimings timings;
+        private final long appSize;
+
+        Result(String url, AppetizeTimings timings, long appSize) {
+            this.url = url;
+            this.timings = timings;
+            this.appSize = appSize;
+        }
+
+        /**
+         * @return URL of the uploaded app, or null on failure
+         */
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return time spent packaging and presigning on the slave, with retries and uploaded bytes
+         */
+        public AppetizeTimings getTimings() {
+            return timings;
+        }
+
+        /**
+         * @return size of the app, or -1 if it was not measured
+         */
+        public long getAppSize() {
+            return appSize;
+        }
+    }
+
+    public Result invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        FilePath appLocation = new FilePath(f);
+        if ((platform.equalsIgnoreCase("ios") && !f.isDirectory()) ||
+                (platform.equalsIgnoreCase("android") && !f.exists())) {
+            logger.println("Error: could not find app in " + f.getPath());
+            return new Result(null, null, -1);
+        }
+
+        Proxy proxy = proxyType == null ? null
+                : proxyType == Proxy.Type.DIRECT ? Proxy.NO_PROXY : new Proxy(proxyType, proxyAddress);
+        AppetizeApiService appetize = new AppetizeApiService(logger, proxy, options.getRetryPolicy());
+        appetize.setApiUrl(options.getApiUrl());
+        if (bytesPerSecond > 0) appetize.setBandwidthLimiter(new AppetizeBandwidthLimiter(bytesPerSecond));
+        // this only runs on slaves, which don't have the global configuration
+        AppetizeBufferPool.get().configure(options.getBufferPoolSize());
+        long appSize = -1;
+        if (measure) {
+            AppetizeBundleFilter filter = platform.equalsIgnoreCase("ios") ? options.getZipper().getBundleFilter() : null;
+            // a local walk, while the master would need another round trip
+            AppetizeDigestCallable.Result app = new AppetizeDigestCallable(filter, false).invoke(f, channel);
+            AppetizePublisher.reportSlimming(app, f.getName(), logger);
+            appSize = app.getSize();
+        }
+        String url = upload(appLocation, platform, uploadUrl, options, appetize, logger, null);
+        return new Result(url, appetize.getTimings(), appSize);
+    }
+
+    /**
+     * Packages an app if needed and uploads it, in parts if it is large enough and multipart
+     * uploads are enabled.
+     * @param appLocation .app directory or .apk file
+     * @param uploadUrl pre-signed URL for uploading in a single request
+     * @param journal records multipart progress, may be null
+     * @return URL of the uploaded app, or null on failure
+     */
+    static String upload(FilePath appLocation, String platform, String uploadUrl, AppetizeUploadOptions options,
+                         AppetizeApiService appetize, PrintStream logger,
+                         AppetizeMultipartUploader.Journal journal) throws IOException, InterruptedException {
+        if (!platform.equalsIgnoreCase("ios")) {
+            if (!appLocation.isRemote()) {
+                return uploadFile(new File(appLocation.getRemote()), platform, uploadUrl, options, appetize, logger, journal);
+            }
+            return appetize.uploadData(appLocation, uploadUrl) ? uploadUrl : null;
+        }
+
+        if (isPackagedFirst(platform, options)) {
+            AppetizePackageBuffer buffer;
+            try {
+                buffer = pack(appLocation, options, appetize.getTimings());
+            } catch (IOException e) {
+                logger.println("Error packaging app: " + e.getMessage());
+                appetize.getTimings().failed(AppetizeTimings.Phase.PACKAGING);
+                return null;
+            }
+            try {
+                return uploadPackage(buffer, platform, uploadUrl, options, appetize, logger, journal);
+            } finally {
+                buffer.dispose();
+            }
+        }
+
+        boolean chunked = options.getIosUploadMode() == AppetizeRecorder.IosUploadMode.STREAM_CHUNKED;
+        return appetize.uploadZip(appLocation, options.getZipper(), uploadUrl, chunked) ? uploadUrl : null;
+    }
+
+    /**
+     * @return true if {@link #upload} packages the app completely before sending any of it, so
+     * that it can be packaged ahead with {@link #pack} while the upload URL is still being fetched
+     */
+    static boolean isPackagedFirst(String platform, AppetizeUploadOptions options) {
+        AppetizeRecorder.IosUploadMode iosUploadMode = options.getIosUploadMode();
+        return platform.equalsIgnoreCase("ios") && (iosUploadMode == AppetizeRecorder.IosUploadMode.TEMP_FILE
+                || iosUploadMode == AppetizeRecorder.IosUploadMode.MEMORY);
+    }
+
+    /**
+     * Zips an iOS app into pooled memory when zipping in memory and it is small enough, otherwise
+     * into a scratch file.
+     * @return the package, which the caller must dispose
+     * @throws IOException if the app could not be packaged, which the caller reports
+     */
+    static AppetizePackageBuffer pack(FilePath appLocation, AppetizeUploadOptions options, AppetizeTimings timings)
+            throws IOException, InterruptedException {
+        long limit = options.getIosUploadMode() == AppetizeRecorder.IosUploadMode.MEMORY
+                ? options.getInMemoryPackagingLimit() : 0;
+        AppetizePackageBuffer buffer = new AppetizePackageBuffer(limit);
+        boolean packed = false;
+        long start = System.currentTimeMillis();
+        try {
+            options.getZipper().zip(appLocation, buffer);
+            buffer.close();
+            packed = true;
+            return buffer;
+        } finally {
+            timings.add(AppetizeTimings.Phase.PACKAGING, System.currentTimeMillis() - start);
+            if (!packed) buffer.dispose();
+        }
+    }
+
+    /**
+     * Uploads a package from {@link #pack}, from memory or from its scratch file in parts if it is
+     * large enough and multipart uploads are enabled.
+     * @return URL of the uploaded app, or null on failure
+     */
+    static String uploadPackage(AppetizePackageBuffer buffer, String platform, String uploadUrl,
+                                AppetizeUploadOptions options, AppetizeApiService appetize, PrintStream logger,
+                                AppetizeMultipartUploader.Journal journal) throws IOException, InterruptedException {
+        long partSize = options.getMultipartPartSize();
+        if (buffer.isInMemory() && (partSize <= 0 || buffer.getLength() <= partSize)) {
+            return appetize.uploadBuffer(buffer, uploadUrl) ? uploadUrl : null;
+        }
+        return uploadFile(buffer.toFile(), platform, uploadUrl, options, appetize, logger, journal);
+    }
+
+    /**
+     * Uploads a local file, in parts if it is large enough and multipart uploads are enabled.
+     * @return URL of the uploaded app, or null on failure
+     */
+    static String uploadFile(File file, String platform, String uploadUrl, AppetizeUploadOptions options,
+                                     AppetizeApiService appetize, PrintStream logger,
+                                     AppetizeMultipartUploader.Journal journal) throws IOException, InterruptedException {
+        long partSize = options.getMultipartPartSize();
+        long length = file.length();
+        if (partSize > 0 && length > partSize) {
+            AppetizeApiService.AppetizeMultipartUrls multipart = journal == null ? null : journal.getMultipartUrls(length, partSize);
+            if (multipart != null) {
+                logger.println("Resuming multipart upload");
+            } else {
+                int parts = (int)((length + partSize - 1) / partSize);
+                long start = System.currentTimeMillis();
+                multipart = appetize.getMultipartUrls(platform, parts);
+                appetize.getTimings().add(AppetizeTimings.Phase.PRESIGN, System.currentTimeMillis() - start);
+                if (multipart != null && journal != null) journal.multipartStarted(multipart, length, partSize);
+            }
+            if (multipart != null) {
+                AppetizeMultipartUploader uploader = new AppetizeMultipartUploader(appetize,
+                        options.getMultipartParallelism(), logger, journal);
+                return uploader.upload(file, partSize, multipart) ? multipart.url : null;
+            }
+            logger.println("Multipart upload is not available, uploading in a single request");
+        }
+
+        return appetize.uploadData(new FilePath(file), uploadUrl) ? uploadUrl : null;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.XmlFile;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Records the progress of an upload in the build directory, so an upload interrupted by a
+ * restart or a network failure can be finished later without rebuilding the app.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeUploadJournal implements AppetizeMultipartUploader.Journal {
+    static final String FILE_NAME = "appetize-upload.xml";
+    // journals of the other apps of a build that publishes several
+    private static final String INDEXED_FILE_NAME = "appetize-upload-%d.xml";
+
+    private transient XmlFile file;
+
+    private final String platform;
+    private final String appPath;
+    private final int index;
+    private final String apiTokenId;
+    private final String digest;
+    private String presignedUrl;
+
+    // multipart upload in progress, if any
+    private AppetizeApiService.AppetizeMultipartUrls multipartUrls;
+    private long multipartLength;
+    private long multipartPartSize;
+    private List<String> confirmedParts;
+
+    // set once all data is uploaded and only the Appetize.io update is left
+    private String uploadedUrl;
+
+    private AppetizeUploadJournal(String platform, String appPath, int index, String apiTokenId, String digest,
+                                  String presignedUrl) {
+        this.platform = platform;
+        this.appPath = appPath;
+        this.index = index;
+        this.apiTokenId = apiTokenId;
+        this.digest = digest;
+        this.presignedUrl = presignedUrl;
+    }
+
+    /**
+     * @param index position from 1 among several apps published by the build, or 0 if it's the only one
+     */
+    public static AppetizeUploadJournal create(Run<?, ?> build, String platform, String appPath, int index,
+                                               String apiTokenId, String digest, String presignedUrl) throws IOException {
+        return create(build.getRootDir(), platform, appPath, index, apiTokenId, digest, presignedUrl);
+    }
+
+    static AppetizeUploadJournal create(File dir, String platform, String appPath, int index,
+                                        String apiTokenId, String digest, String presignedUrl) throws IOException {
+        AppetizeUploadJournal journal = new AppetizeUploadJournal(platform, appPath, index, apiTokenId, digest, presignedUrl);
+        journal.file = new XmlFile(new File(dir, getFileName(index)));
+        journal.save();
+        return journal;
+    }
+
+    /**
+     * @return the journals of the unfinished uploads of a build, in the order the apps were published
+     */
+    public static List<AppetizeUploadJournal> loadAll(Run<?, ?> build) throws IOException {
+        return loadAll(build.getRootDir());
+    }
+
+    static List<AppetizeUploadJournal> loadAll(File dir) throws IOException {
+        List<AppetizeUploadJournal> journals = new ArrayList<AppetizeUploadJournal>();
+        for (File f : getFiles(dir)) {
+            XmlFile file = new XmlFile(f);
+            AppetizeUploadJournal journal = (AppetizeUploadJournal)file.read();
+            journal.file = file;
+            journals.add(journal);
+        }
+        Collections.sort(journals, new Comparator<AppetizeUploadJournal>() {
+            public int compare(AppetizeUploadJournal a, AppetizeUploadJournal b) {
+                return a.index < b.index ? -1 : a.index == b.index ? 0 : 1;
+            }
+        });
+        return journals;
+    }
+
+    public static boolean exists(Run<?, ?> build) {
+        return getFiles(build.getRootDir()).length > 0;
+    }
+
+    private static File[] getFiles(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.equals(FILE_NAME) || name.matches("appetize-upload-\\d+\\.xml");
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    private static String getFileName(int index) {
+        return index == 0 ? FILE_NAME : String.format(INDEXED_FILE_NAME, index);
+    }
+
+    public String getPlatform() {
+        return platform;
+    }
+
+    public String getAppPath() {
+        return appPath;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getApiTokenId() {
+        return apiTokenId;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public synchronized String getPresignedUrl() {
+        return presignedUrl;
+    }
+
+    public synchronized String getUploadedUrl() {
+        return uploadedUrl;
+    }
+
+    /**
+     * Forgets all progress and starts over with a new pre-signed URL.
+     */
+    public synchronized void restart(String presignedUrl) throws IOException {
+        this.presignedUrl = presignedUrl;
+        this.multipartUrls = null;
+        this.confirmedParts = null;
+        save();
+    }
+
+    public synchronized void uploaded(String uploadedUrl) throws IOException {
+        this.uploadedUrl = uploadedUrl;
+        save();
+    }
+
+    public synchronized AppetizeApiService.AppetizeMultipartUrls getMultipartUrls(long length, long partSize) {
+        return length == multipartLength && partSize == multipartPartSize ? multipartUrls : null;
+    }
+
+    public synchronized String getConfirmedPart(int part) {
+        return confirmedParts != null && part < confirmedParts.size() ? confirmedParts.get(part) : null;
+    }
+
+    public synchronized void multipartStarted(AppetizeApiService.AppetizeMultipartUrls urls, long length, long partSize)
+            throws IOException {
+        this.multipartUrls = urls;
+        this.multipartLength = length;
+        this.multipartPartSize = partSize;
+        this.confirmedParts = new ArrayList<String>();
+        for (int i = 0; i < urls.partUrls.size(); i++) {
+            confirmedParts.add(null);
+        }
+        save();
+    }
+
+    public synchronized void partConfirmed(int part, String etag) throws IOException {
+        confirmedParts.set(part, etag);
+        save();
+    }
+
+    public synchronized void delete() {
+        file.delete();
+    }
+
+    private void save() throws IOException {
+        file.write(this);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.io.Serializable;
+
+/**
+ * Packaging and transfer settings for a single upload, taken from the global configuration
+ * so they can be passed to a slave.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeUploadOptions implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final AppetizeRecorder.IosUploadMode iosUploadMode;
+    private final long multipartPartSize;
+    private final int multipartParallelism;
+    private final AppetizeRetryPolicy retryPolicy;
+    private final AppetizeZipper zipper;
+    private final String apiUrl;
+    private final long inMemoryPackagingLimit;
+    private final long bufferPoolSize;
+
+    public AppetizeUploadOptions(AppetizeRecorder.IosUploadMode iosUploadMode, long multipartPartSize,
+                                 int multipartParallelism, AppetizeRetryPolicy retryPolicy, AppetizeZipper zipper) {
+        this(iosUploadMode, multipartPartSize, multipartParallelism, retryPolicy, zipper, null);
+    }
+
+    /**
+     * @param apiUrl base URL of the Appetize.io API, null for the real service
+     */
+    public AppetizeUploadOptions(AppetizeRecorder.IosUploadMode iosUploadMode, long multipartPartSize,
+                                 int multipartParallelism, AppetizeRetryPolicy retryPolicy, AppetizeZipper zipper,
+                                 String apiUrl) {
+        this(iosUploadMode, multipartPartSize, multipartParallelism, retryPolicy, zipper, apiUrl,
+                AppetizePackageBuffer.DEFAULT_LIMIT_MB * 1024L * 1024L, AppetizeBufferPool.DEFAULT_MAX_MB * 1024L * 1024L);
+    }
+
+    /**
+     * @param inMemoryPackagingLimit largest iOS package kept in memory when packaging in memory, in bytes
+     * @param bufferPoolSize memory shared by all packages kept in memory on a node, in bytes
+     */
+    public AppetizeUploadOptions(AppetizeRecorder.IosUploadMode iosUploadMode, long multipartPartSize,
+                                 int multipartParallelism, AppetizeRetryPolicy retryPolicy, AppetizeZipper zipper,
+                                 String apiUrl, long inMemoryPackagingLimit, long bufferPoolSize) {
+        this.inMemoryPackagingLimit = inMemoryPackagingLimit;
+        this.bufferPoolSize = bufferPoolSize;
+        this.iosUploadMode = iosUploadMode;
+        this.multipartPartSize = multipartPartSize;
+        this.multipartParallelism = multipartParallelism;
+        this.retryPolicy = retryPolicy;
+        this.zipper = zipper;
+        this.apiUrl = apiUrl;
+    }
+
+    public AppetizeRecorder.IosUploadMode getIosUploadMode() {
+        return iosUploadMode;
+    }
+
+    /**
+     * @return size in bytes of each part of a multipart upload, or 0 to always upload in a single request
+     */
+    public long getMultipartPartSize() {
+        return multipartPartSize;
+    }
+
+    /**
+     * @return number of parts uploaded at the same time
+     */
+    public int getMultipartParallelism() {
+        return multipartParallelism;
+    }
+
+    public AppetizeRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public AppetizeZipper getZipper() {
+        return zipper;
+    }
+
+    public String getApiUrl() {
+        return apiUrl;
+    }
+
+    /**
+     * @return largest iOS package kept in memory, in bytes; larger ones go to a scratch file
+     */
+    public long getInMemoryPackagingLimit() {
+        return inMemoryPackagingLimit;
+    }
+
+    /**
+     * @return memory shared by all packages kept in memory on a node, in bytes
+     */
+    public long getBufferPoolSize() {
+        return bufferPoolSize;
+    }
+}
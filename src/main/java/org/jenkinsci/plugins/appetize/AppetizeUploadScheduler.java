@@ -0,0 +1,205 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Lets a limited number of uploads run at once across all builds, in order of priority and then
+ * of arrival, and caps their combined bandwidth. Builds waiting for a slot log their position
+ * in the queue.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public final class AppetizeUploadScheduler {
+    private static final AppetizeUploadScheduler INSTANCE = new AppetizeUploadScheduler();
+
+    private final AppetizeBandwidthLimiter limiter = new AppetizeBandwidthLimiter(0);
+    // waiting uploads, highest priority first, then in order of arrival
+    private final List<Slot> queue = new ArrayList<Slot>();
+    private int maxConcurrent;
+    private int running;
+    private long sequence;
+
+    private AppetizeUploadScheduler() {
+    }
+
+    public static AppetizeUploadScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param maxConcurrent uploads allowed at once, 0 for no limit
+     * @param bytesPerSecond combined upload bandwidth, 0 for no limit
+     */
+    public synchronized void configure(int maxConcurrent, long bytesPerSecond) {
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+        if (limiter.getBytesPerSecond() != bytesPerSecond) limiter.setBytesPerSecond(bytesPerSecond);
+        // a higher limit may let waiting uploads start
+        notifyAll();
+    }
+
+    /**
+     * @return the limiter shared by all uploads from the master
+     */
+    public AppetizeBandwidthLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * @return bandwidth for an upload that can't share the limiter, such as one from a slave,
+     * so that the running uploads together stay under the cap; 0 for no limit
+     */
+    public synchronized long getBandwidthShare() {
+        long bytesPerSecond = limiter.getBytesPerSecond();
+        if (bytesPerSecond <= 0) return 0;
+        int shares = maxConcurrent > 0 ? maxConcurrent : Math.max(1, running);
+        return Math.max(1, bytesPerSecond / shares);
+    }
+
+    /**
+     * Waits for a slot to upload in.
+     * @param priority higher priorities go first
+     * @param logger build log for the queue position
+     * @return the slot, to be released when the upload is done
+     */
+    public Slot acquire(int priority, PrintStream logger) throws InterruptedException {
+        return acquire(priority, logger, null);
+    }
+
+    /**
+     * Waits for a slot to upload in, unless the build is superseded while waiting.
+     * @param supersession the build's claim on its app, null if it can't be superseded
+     * @return the slot, to be released when the upload is done, or null if the build was superseded
+     */
+    public Slot acquire(int priority, PrintStream logger, AppetizeSupersession.Ticket supersession)
+            throws InterruptedException {
+        Slot slot;
+        synchronized (this) {
+            slot = new Slot(priority, sequence++);
+            int index = 0;
+            while (index < queue.size() && !slot.before(queue.get(index))) {
+                index++;
+            }
+            queue.add(index, slot);
+
+            int lastPosition = -1;
+            try {
+                while (!isNext(slot)) {
+                    if (supersession != null && supersession.isSuperseded()) {
+                        queue.remove(slot);
+                        notifyAll();
+                        return null;
+                    }
+                    int position = queue.indexOf(slot) + 1;
+                    if (position != lastPosition) {
+                        logger.println("Waiting for an Appetize.io upload slot: position " + position + " of " +
+                                queue.size() + " in the queue, " + running + " uploading");
+                        lastPosition = position;
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                queue.remove(slot);
+                notifyAll();
+                throw e;
+            }
+            queue.remove(slot);
+            running++;
+            // the next one may fit as well
+            notifyAll();
+        }
+        return slot;
+    }
+
+    /**
+     * Lets waiting uploads check whether they are still wanted.
+     */
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    private boolean isNext(Slot slot) {
+        return queue.get(0) == slot && (maxConcurrent <= 0 || running < maxConcurrent);
+    }
+
+    private synchronized void release() {
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * @return the priority of the first rule matching the job name, or 0. Rules are lines of a
+     * regular expression and a number, e.g. <tt>.*-release 10</tt>.
+     * @throws PatternSyntaxException if a rule is invalid
+     */
+    public static int getPriority(String rules, String jobName) {
+        if (rules == null) return 0;
+        for (String line : rules.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int space = line.lastIndexOf(' ');
+            if (space < 0) throw new PatternSyntaxException("Missing priority", line, line.length());
+            int priority;
+            try {
+                priority = Integer.parseInt(line.substring(space + 1));
+            } catch (NumberFormatException e) {
+                throw new PatternSyntaxException("Invalid priority", line, space + 1);
+            }
+            if (Pattern.matches(line.substring(0, space).trim(), jobName)) return priority;
+        }
+        return 0;
+    }
+
+    /**
+     * A place in the queue, and then a running upload
+     */
+    public final class Slot {
+        private final int priority;
+        private final long sequence;
+        private boolean released;
+
+        private Slot(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        private boolean before(Slot other) {
+            return priority > other.priority || (priority == other.priority && sequence < other.sequence);
+        }
+
+        public void release() {
+            synchronized (AppetizeUploadScheduler.this) {
+                if (released) return;
+                released = true;
+            }
+            AppetizeUploadScheduler.this.release();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends each request with an {@link HttpURLConnection} on the calling thread, which waits for
+ * the whole exchange. Works with every kind of body, and is the only transport used on slaves.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public final class AppetizeUrlConnectionTransport implements AppetizeTransport {
+    private static final AppetizeUrlConnectionTransport INSTANCE = new AppetizeUrlConnectionTransport();
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private AppetizeUrlConnectionTransport() {
+    }
+
+    public static AppetizeUrlConnectionTransport get() {
+        return INSTANCE;
+    }
+
+    public boolean isAsynchronous() {
+        return false;
+    }
+
+    public AppetizeFuture<Response> send(Request request, Proxy proxy, AppetizeRetryPolicy retryPolicy) {
+        try {
+            return AppetizeFuture.completed(execute(request, proxy, retryPolicy));
+        } catch (Exception e) {
+            return AppetizeFuture.failed(e);
+        }
+    }
+
+    private Response execute(Request request, Proxy proxy, AppetizeRetryPolicy retryPolicy)
+            throws IOException, InterruptedException {
+        AppetizeHttpClient client = AppetizeHttpClient.get();
+        HttpURLConnection connection = client.open(request.getUrl(), proxy, retryPolicy);
+        // only connections that got a complete response can be kept alive
+        boolean reusable = false;
+        try {
+            connection.setRequestMethod(request.getMethod());
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            long sent = 0;
+            if (request.hasBody()) {
+                connection.setDoOutput(true);
+                long length = request.getLength();
+                if (length >= 0 && length <= Integer.MAX_VALUE) {
+                    connection.setFixedLengthStreamingMode((int)length);
+                } else if (length >= 0 || request.isChunked()) {
+                    // over 2 GB the int overload can't take the length, so stream rather than buffer it all
+                    connection.setChunkedStreamingMode(CHUNK_SIZE);
+                }
+
+                OutputStream out = connection.getOutputStream();
+                if (request.getUploadFilter() != null) out = request.getUploadFilter().filter(out);
+                sent = writeBody(request, out);
+                out.close();
+            } else {
+                connection.connect();
+            }
+
+            int status = connection.getResponseCode();
+            String body = readToString(status >= 200 && status <= 299 ?
+                    connection.getInputStream() : connection.getErrorStream());
+            Map<String, String> headers = new HashMap<String, String>();
+            for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                if (header.getKey() != null) headers.put(header.getKey(), connection.getHeaderField(header.getKey()));
+            }
+            reusable = true;
+            return new Response(status, headers, body, sent);
+        } finally {
+            if (reusable) {
+                client.release(connection);
+            } else {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static long writeBody(Request request, OutputStream out) throws IOException, InterruptedException {
+        if (request.getBytes() != null) {
+            out.write(request.getBytes());
+            return request.getBytes().length;
+        }
+        if (request.getStream() != null) {
+            return request.getStream().writeTo(out);
+        }
+
+        // the connection only takes a stream, so the region is copied through a buffer either way
+        FileInputStream in = new FileInputStream(request.getFile());
+        try {
+            in.getChannel().position(request.getOffset());
+            AppetizeApiService.copy(in, out, request.getLength());
+            return request.getLength();
+        } finally {
+            in.close();
+        }
+    }
+
+    static String readToString(InputStream in) throws IOException {
+        if (in == null) return null;
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
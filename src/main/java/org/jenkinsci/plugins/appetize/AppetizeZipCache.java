@@ -0,0 +1,307 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The last archive of an app, kept beside it in the workspace together with an index of where
+ * each file's compressed data is. Files whose size and modification time haven't changed since
+ * are copied from the old archive as they are instead of being compressed again.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+class AppetizeZipCache {
+    static final String DIRECTORY = ".appetize-zip-cache";
+
+    private static final int VERSION = 1;
+    private static final Map<String, AppLock> locks = new HashMap<String, AppLock>();
+
+    private final File archive;
+    private final File index;
+    private final int compressionLevel;
+    private final Map<String, CachedEntry> previous;
+    private final File newArchive;
+    private final OutputStream newArchiveOut;
+    private final List<CachedEntry> entries = new ArrayList<CachedEntry>();
+    private RandomAccessFile previousArchive;
+    private boolean committed;
+
+    private AppetizeZipCache(File archive, File index, int compressionLevel, Map<String, CachedEntry> previous,
+                             File newArchive) throws IOException {
+        this.archive = archive;
+        this.index = index;
+        this.compressionLevel = compressionLevel;
+        this.previous = previous;
+        this.newArchive = newArchive;
+        this.newArchiveOut = new BufferedOutputStream(new FileOutputStream(newArchive));
+        if (!previous.isEmpty()) {
+            previousArchive = new RandomAccessFile(archive, "r");
+        }
+    }
+
+    /**
+     * Waits for and takes the lock to hold while packaging an app, so two builds sharing a
+     * workspace don't rewrite its cache at the same time. Must be followed by {@link #unlock}.
+     */
+    static void lock(File app) throws InterruptedException {
+        String key = app.getAbsolutePath();
+        AppLock appLock;
+        synchronized (locks) {
+            appLock = locks.get(key);
+            if (appLock == null) {
+                appLock = new AppLock();
+                locks.put(key, appLock);
+            }
+            appLock.users++;
+        }
+        try {
+            appLock.lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            release(key, appLock);
+            throw e;
+        }
+    }
+
+    static void unlock(File app) {
+        String key = app.getAbsolutePath();
+        synchronized (locks) {
+            AppLock appLock = locks.get(key);
+            appLock.lock.unlock();
+            release(key, appLock);
+        }
+    }
+
+    /**
+     * Forgets the lock of an app once nobody holds or waits for it.
+     */
+    private static void release(String key, AppLock appLock) {
+        synchronized (locks) {
+            if (--appLock.users == 0) locks.remove(key);
+        }
+    }
+
+    private static class AppLock {
+        final ReentrantLock lock = new ReentrantLock();
+        // threads holding or waiting for the lock
+        int users;
+    }
+
+    /**
+     * @return the cache for an app, or null if it can't be written
+     */
+    static AppetizeZipCache open(File app, int compressionLevel) {
+        File directory = new File(app.getParentFile(), DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) return null;
+
+        File archive = new File(directory, app.getName() + ".zip");
+        File index = new File(directory, app.getName() + ".index");
+        Map<String, CachedEntry> previous = readIndex(archive, index, compressionLevel);
+        try {
+            File newArchive = File.createTempFile(app.getName(), ".tmp", directory);
+            return new AppetizeZipCache(archive, index, compressionLevel, previous, newArchive);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, CachedEntry> readIndex(File archive, File index, int compressionLevel) {
+        if (!archive.isFile() || !index.isFile()) return Collections.emptyMap();
+
+        Map<String, CachedEntry> entries = new HashMap<String, CachedEntry>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+            try {
+                if (in.readInt() != VERSION || in.readInt() != compressionLevel) {
+                    return Collections.emptyMap();
+                }
+                long archiveLength = archive.length();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    CachedEntry entry = CachedEntry.read(in);
+                    if (entry.offset + entry.compressedSize > archiveLength) {
+                        return Collections.emptyMap();
+                    }
+                    entries.put(entry.name, entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // start over
+            return Collections.emptyMap();
+        }
+        return entries;
+    }
+
+    /**
+     * @return the new archive is written here as well
+     */
+    OutputStream getOutput() {
+        return newArchiveOut;
+    }
+
+    /**
+     * @param storedByRule whether the file would be stored without compression because of its extension
+     * @return the entry for an unchanged file, or null
+     */
+    CachedEntry lookup(String name, long size, long lastModified, boolean executable, boolean storedByRule) {
+        CachedEntry entry = previous.get(name);
+        if (entry == null || entry.size != size || entry.lastModified != lastModified
+                || entry.executable != executable || entry.storedByRule != storedByRule) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Copies an entry's compressed data from the previous archive.
+     */
+    void copy(CachedEntry entry, OutputStream out) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        long position = entry.offset;
+        long remaining = entry.compressedSize;
+        while (remaining > 0) {
+            previousArchive.seek(position);
+            int len = previousArchive.read(buf, 0, (int)Math.min(buf.length, remaining));
+            if (len < 0) throw new IOException(archive + " was truncated");
+            out.write(buf, 0, len);
+            position += len;
+            remaining -= len;
+        }
+    }
+
+    /**
+     * Remembers where an entry of the new archive is.
+     */
+    void record(CachedEntry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * Replaces the previous archive and index with the new ones.
+     */
+    void commit() throws IOException {
+        newArchiveOut.close();
+        closePrevious();
+        index.delete();
+        if (archive.exists() && !archive.delete() || !newArchive.renameTo(archive)) {
+            throw new IOException("Could not replace " + archive);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(compressionLevel);
+            out.writeInt(entries.size());
+            for (CachedEntry entry : entries) {
+                entry.write(out);
+            }
+        } finally {
+            out.close();
+        }
+        committed = true;
+    }
+
+    /**
+     * Discards the new archive unless it was committed.
+     */
+    void close() {
+        try {
+            newArchiveOut.close();
+        } catch (IOException e) {
+            // deleted below
+        }
+        closePrevious();
+        if (!committed) newArchive.delete();
+    }
+
+    private void closePrevious() {
+        if (previousArchive == null) return;
+        try {
+            previousArchive.close();
+        } catch (IOException e) {
+            // only read from
+        }
+        previousArchive = null;
+    }
+
+    static class CachedEntry {
+        final String name;
+        final long size;
+        final long lastModified;
+        final boolean executable;
+        final boolean storedByRule;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long offset;
+
+        CachedEntry(String name, long size, long lastModified, boolean executable, boolean storedByRule,
+                    int method, long crc, long compressedSize, long offset) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.executable = executable;
+            this.storedByRule = storedByRule;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.offset = offset;
+        }
+
+        static CachedEntry read(DataInputStream in) throws IOException {
+            return new CachedEntry(in.readUTF(), in.readLong(), in.readLong(), in.readBoolean(), in.readBoolean(),
+                    in.readInt(), in.readLong(), in.readLong(), in.readLong());
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(name);
+            out.writeLong(size);
+            out.writeLong(lastModified);
+            out.writeBoolean(executable);
+            out.writeBoolean(storedByRule);
+            out.writeInt(method);
+            out.writeLong(crc);
+            out.writeLong(compressedSize);
+            out.writeLong(offset);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a zip archive from entries whose CRC and sizes are known before their data, e.g.
+ * because they were compressed ahead of time. The data is written as it is, so each entry's
+ * local header can carry the final sizes and the archive needs no data descriptors.
+ * ZIP64 records are added only when sizes, offsets or the number of entries call for them.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeZipWriter {
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+    // names are UTF-8
+    private static final int FLAG_UTF8 = 1 << 11;
+    // made by Unix, so the permission bits in the external attributes are honored
+    private static final int VERSION_MADE_BY = (3 << 8) | 20;
+    private static final int VERSION_NEEDED = 20;
+    private static final int VERSION_NEEDED_ZIP64 = 45;
+    // central directory records are written out in batches of about this size
+    private static final int HEADER_BATCH = 64 * 1024;
+
+    private final CountingStream out;
+    // headers are put together here and written in one call, rather than a byte at a time
+    private final ByteArrayOutputStream header = new ByteArrayOutputStream(512);
+    private final List<CentralEntry> entries = new ArrayList<CentralEntry>();
+    private CentralEntry current;
+
+    public AppetizeZipWriter(OutputStream out) {
+        this.out = new CountingStream(out);
+    }
+
+    /**
+     * Starts an entry. Exactly compressedSize bytes must be written to the returned stream
+     * before {@link #closeEntry()}.
+     * @param method {@link #STORED} or {@link #DEFLATED} (raw deflate data, without a zlib header)
+     * @param dosTime modification time in MS-DOS format
+     * @param mode Unix file type and permissions, e.g. 0100644
+     */
+    public OutputStream putEntry(String name, int method, long dosTime, long crc, long size,
+                                 long compressedSize, int mode) throws IOException {
+        if (current != null) throw new IllegalStateException("Entry " + current.name + " is not closed");
+
+        CentralEntry entry = new CentralEntry();
+        entry.name = name.getBytes("UTF-8");
+        entry.method = method;
+        entry.dosTime = dosTime;
+        entry.crc = crc;
+        entry.size = size;
+        entry.compressedSize = compressedSize;
+        entry.mode = mode;
+        entry.offset = out.getCount();
+
+        boolean zip64 = size >= MAX_32 || compressedSize >= MAX_32;
+        writeInt(0x04034b50);
+        writeShort(zip64 ? VERSION_NEEDED_ZIP64 : VERSION_NEEDED);
+        writeShort(FLAG_UTF8);
+        writeShort(method);
+        writeInt(dosTime);
+        writeInt(crc);
+        writeInt(zip64 ? MAX_32 : compressedSize);
+        writeInt(zip64 ? MAX_32 : size);
+        writeShort(entry.name.length);
+        writeShort(zip64 ? 20 : 0);
+        header.write(entry.name);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(size);
+            writeLong(compressedSize);
+        }
+        writeHeader();
+
+        entry.dataStart = out.getCount();
+        current = entry;
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                // the archive stays open
+            }
+        };
+    }
+
+    public void closeEntry() throws IOException {
+        if (current == null) throw new IllegalStateException("No entry is open");
+        long written = out.getCount() - current.dataStart;
+        if (written != current.compressedSize) {
+            throw new IOException("Wrote " + written + " bytes for " + new String(current.name, "UTF-8")
+                    + " instead of " + current.compressedSize);
+        }
+        entries.add(current);
+        current = null;
+    }
+
+    /**
+     * Writes the central directory. The underlying stream is left open.
+     */
+    public void finish() throws IOException {
+        if (current != null) closeEntry();
+
+        long centralStart = out.getCount();
+        for (CentralEntry entry : entries) {
+            boolean sizeOverflow = entry.size >= MAX_32;
+            boolean compressedOverflow = entry.compressedSize >= MAX_32;
+            boolean offsetOverflow = entry.offset >= MAX_32;
+            int extraLength = (sizeOverflow ? 8 : 0) + (compressedOverflow ? 8 : 0) + (offsetOverflow ? 8 : 0);
+            boolean zip64 = extraLength > 0;
+
+            writeInt(0x02014b50);
+            writeShort(VERSION_MADE_BY);
+            writeShort(zip64 ? VERSION_NEEDED_ZIP64 : VERSION_NEEDED);
+            writeShort(FLAG_UTF8);
+            writeShort(entry.method);
+            writeInt(entry.dosTime);
+            writeInt(entry.crc);
+            writeInt(compressedOverflow ? MAX_32 : entry.compressedSize);
+            writeInt(sizeOverflow ? MAX_32 : entry.size);
+            writeShort(entry.name.length);
+            writeShort(zip64 ? extraLength + 4 : 0);
+            writeShort(0); // comment
+            writeShort(0); // disk
+            writeShort(0); // internal attributes
+            // MS-DOS directory flag, Unix mode in the high bits
+            writeInt(((long)entry.mode << 16) | ((entry.mode & 040000) != 0 ? 0x10 : 0));
+            writeInt(offsetOverflow ? MAX_32 : entry.offset);
+            header.write(entry.name);
+            if (zip64) {
+                writeShort(0x0001);
+                writeShort(extraLength);
+                if (sizeOverflow) writeLong(entry.size);
+                if (compressedOverflow) writeLong(entry.compressedSize);
+                if (offsetOverflow) writeLong(entry.offset);
+            }
+            if (header.size() >= HEADER_BATCH) writeHeader();
+        }
+        writeHeader();
+        long centralEnd = out.getCount();
+        long centralSize = centralEnd - centralStart;
+
+        if (entries.size() >= MAX_16 || centralStart >= MAX_32 || centralSize >= MAX_32) {
+            // ZIP64 end of central directory record and its locator
+            writeInt(0x06064b50);
+            writeLong(44);
+            writeShort(VERSION_MADE_BY);
+            writeShort(VERSION_NEEDED_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(centralSize);
+            writeLong(centralStart);
+
+            writeInt(0x07064b50);
+            writeInt(0);
+            writeLong(centralEnd);
+            writeInt(1);
+        }
+
+        writeInt(0x06054b50);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(entries.size(), MAX_16));
+        writeShort(Math.min(entries.size(), MAX_16));
+        writeInt(Math.min(centralSize, MAX_32));
+        writeInt(Math.min(centralStart, MAX_32));
+        writeShort(0);
+        writeHeader();
+        out.flush();
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    public long getCount() {
+        return out.getCount();
+    }
+
+    /**
+     * Writes out the headers put together since the last call.
+     */
+    private void writeHeader() throws IOException {
+        header.writeTo(out);
+        header.reset();
+    }
+
+    private void writeShort(int v) {
+        header.write(v & 0xFF);
+        header.write((v >>> 8) & 0xFF);
+    }
+
+    private void writeInt(long v) {
+        writeShort((int)(v & 0xFFFF));
+        writeShort((int)((v >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long v) {
+        writeInt(v & MAX_32);
+        writeInt(v >>> 32);
+    }
+
+    private static class CentralEntry {
+        byte[] name;
+        int method;
+        long dosTime;
+        long crc;
+        long size;
+        long compressedSize;
+        int mode;
+        long offset;
+        long dataStart;
+    }
+
+    private static class CountingStream extends FilterOutputStream {
+        private long count;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import hudson.FilePath;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.apache.commons.io.output.TeeOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Zips a directory the way {@link FilePath#zip(OutputStream)} does, with the directory itself
+ * as the top-level entry, but deflates the entries on several threads. Entries are compressed
+ * ahead of the writer in a bounded window and written in order, so the archive is a normal zip
+ * that can still be streamed. Files with extensions that are already compressed, like PNG
+ * assets and asset catalogs, are stored without wasting CPU on them.
+ *
+ * Entries are sorted by name and carry a fixed timestamp, so the same files always give the same
+ * archive, byte for byte. With the incremental cache, files that haven't changed since the last
+ * archive of the app are copied from it instead of being compressed again.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeZipper implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    public static final String DEFAULT_STORED_EXTENSIONS = "png jpg jpeg gif car aac m4a mp3 mp4 mov zip gz jar";
+
+    // compressed entries larger than this are kept in a temp file until it's their turn to be written
+    private static final int MAX_BUFFERED_ENTRY = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // 1980-01-01 00:00, the earliest time a zip can hold
+    private static final long ENTRY_TIME = (1 << 21) | (1 << 16);
+
+    private final int compressionLevel;
+    private final HashSet<String> storedExtensions;
+    private final int threads;
+    private final boolean incremental;
+    private final AppetizeBundleFilter bundleFilter;
+
+    /**
+     * @param compressionLevel deflate level from 0 (store everything) to 9
+     * @param storedExtensions extensions of files to store without compression, separated by
+     *                         spaces or commas
+     * @param threads number of threads compressing entries, or 0 for one per processor
+     * @param incremental whether to keep the last archive of each app beside it and reuse its entries
+     */
+    public AppetizeZipper(int compressionLevel, String storedExtensions, int threads, boolean incremental) {
+        this(compressionLevel, storedExtensions, threads, incremental, null);
+    }
+
+    /**
+     * @param bundleFilter decides which files are left out of the archive, may be null
+     */
+    public AppetizeZipper(int compressionLevel, String storedExtensions, int threads, boolean incremental,
+                          AppetizeBundleFilter bundleFilter) {
+        this.bundleFilter = bundleFilter == null || bundleFilter.isEmpty() ? null : bundleFilter;
+        this.compressionLevel = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+        this.storedExtensions = parseExtensions(storedExtensions);
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.incremental = incremental;
+    }
+
+    static HashSet<String> parseExtensions(String extensions) {
+        HashSet<String> result = new HashSet<String>();
+        if (extensions == null) return result;
+        for (String extension : extensions.split("[\\s,]+")) {
+            extension = extension.replaceFirst("^\\*?\\.", "").toLowerCase(Locale.ENGLISH);
+            if (!extension.isEmpty()) result.add(extension);
+        }
+        return result;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public Set<String> getStoredExtensions() {
+        return storedExtensions;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return filter applied to the bundle before zipping, or null if everything is zipped
+     */
+    public AppetizeBundleFilter getBundleFilter() {
+        return bundleFilter;
+    }
+
+    /**
+     * Zips a directory on whichever node it's on into a stream on this node.
+     */
+    public void zip(FilePath directory, OutputStream out) throws IOException, InterruptedException {
+        if (!directory.isRemote()) {
+            zip(new File(directory.getRemote()), out);
+            return;
+        }
+        directory.act(new ZipCallable(this, new RemoteOutputStream(out)));
+    }
+
+    /**
+     * Zips a local directory into a stream. The stream is flushed but not closed.
+     */
+    public void zip(File directory, OutputStream out) throws IOException, InterruptedException {
+        List<Entry> entries = new ArrayList<Entry>();
+        collect(directory, "", entries);
+
+        if (!incremental) {
+            write(entries, out, null);
+            return;
+        }
+        AppetizeZipCache.lock(directory);
+        try {
+            AppetizeZipCache cache = AppetizeZipCache.open(directory, compressionLevel);
+            if (cache == null) {
+                // e.g. a read-only workspace
+                write(entries, out, null);
+                return;
+            }
+            try {
+                write(entries, new TeeOutputStream(out, cache.getOutput()), cache);
+                cache.commit();
+            } finally {
+                cache.close();
+            }
+        } finally {
+            AppetizeZipCache.unlock(directory);
+        }
+    }
+
+    private void write(List<Entry> entries, OutputStream out, final AppetizeZipCache cache)
+            throws IOException, InterruptedException {
+        AppetizeZipWriter writer = new AppetizeZipWriter(out);
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new NamingThreadFactory(new DaemonThreadFactory(), "Appetize.io zip"));
+        // enough compressed entries waiting that no thread sits idle while a large one is written
+        int window = threads * 2;
+        LinkedList<Future<Compressed>> pending = new LinkedList<Future<Compressed>>();
+        try {
+            int next = 0;
+            while (next < entries.size() || !pending.isEmpty()) {
+                while (next < entries.size() && pending.size() < window) {
+                    final Entry entry = entries.get(next++);
+                    pending.add(executor.submit(new Callable<Compressed>() {
+                        public Compressed call() throws IOException {
+                            return compress(entry, cache);
+                        }
+                    }));
+                }
+
+                Compressed compressed = get(pending.getFirst());
+                pending.removeFirst();
+                try {
+                    compressed.writeTo(writer, cache);
+                } finally {
+                    compressed.dispose();
+                }
+            }
+            writer.finish();
+            out.flush();
+        } finally {
+            // entries that haven't started needn't be compressed at all
+            for (Future<Compressed> future : pending) {
+                future.cancel(false);
+            }
+            executor.shutdown();
+            // let entries that are already being compressed finish, then clean up after them, even
+            // when interrupted; the interrupt is kept for the caller rather than masking the failure
+            boolean interrupted = false;
+            for (Future<Compressed> future : pending) {
+                while (!future.isCancelled()) {
+                    try {
+                        future.get().dispose();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        // already reported by the entry that failed first
+                        break;
+                    }
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Compressed get(Future<Compressed> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Lists a directory and everything below it in a stable order, directories before their contents.
+     * Files the bundle filter leaves out are skipped, and so is everything in a directory it leaves out.
+     */
+    private void collect(File file, String parent, List<Entry> entries) throws IOException {
+        if (!file.canRead()) return;
+
+        String name = parent + file.getName();
+        // the filter sees paths inside the bundle, without the top-level directory
+        if (bundleFilter != null && !parent.isEmpty()
+                && bundleFilter.isExcluded(name.substring(name.indexOf('/') + 1), file.isDirectory())) {
+            return;
+        }
+        if (file.isDirectory()) {
+            entries.add(new Entry(file, name + "/", true, 0, 0, false, true));
+            File[] children = file.listFiles();
+            if (children == null) throw new IOException("Could not list " + file);
+            // by name, whatever the file system's own ordering
+            Arrays.sort(children, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return a.getName().compareTo(b.getName());
+                }
+            });
+            for (File child : children) {
+                collect(child, name + "/", entries);
+            }
+        } else {
+            entries.add(new Entry(file, name, false, file.length(), file.lastModified(), file.canExecute(),
+                    isStored(name)));
+        }
+    }
+
+    boolean isStored(String name) {
+        if (compressionLevel == Deflater.NO_COMPRESSION) return true;
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        return dot > slash && storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    private Compressed compress(Entry entry, AppetizeZipCache cache) throws IOException {
+        if (entry.directory) {
+            return new Compressed(entry, AppetizeZipWriter.STORED, 0, 0, 0, null, null);
+        }
+
+        boolean stored = entry.storedByRule;
+        AppetizeZipCache.CachedEntry cached = cache == null ? null
+                : cache.lookup(entry.name, entry.size, entry.lastModified, entry.executable, stored);
+        if (cached != null) {
+            return new Compressed(entry, cached.method, cached.crc, cached.size, cached.compressedSize, null, cached);
+        }
+
+        CRC32 crc = new CRC32();
+        long size = 0;
+        SpillBuffer buffer = stored ? null : new SpillBuffer();
+        Deflater deflater = stored ? null : new Deflater(compressionLevel, true);
+        InputStream in = new FileInputStream(entry.file);
+        try {
+            OutputStream out = stored ? null : new DeflaterOutputStream(buffer, deflater, BUFFER_SIZE);
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                crc.update(buf, 0, len);
+                size += len;
+                if (out != null) out.write(buf, 0, len);
+            }
+            if (out != null) out.close();
+        } catch (IOException e) {
+            if (buffer != null) buffer.dispose();
+            throw e;
+        } finally {
+            in.close();
+            if (deflater != null) deflater.end();
+        }
+
+        if (buffer != null && buffer.size() >= size) {
+            // didn't compress, e.g. an embedded framework that is already packed
+            buffer.dispose();
+            buffer = null;
+        }
+        if (buffer == null) {
+            return new Compressed(entry, AppetizeZipWriter.STORED, crc.getValue(), size, size, null, null);
+        }
+        return new Compressed(entry, AppetizeZipWriter.DEFLATED, crc.getValue(), size, buffer.size(), buffer, null);
+    }
+
+    private static class Entry {
+        final File file;
+        final String name;
+        final boolean directory;
+        final long size;
+        final long lastModified;
+        final boolean executable;
+        // stored without compression because of its extension
+        final boolean storedByRule;
+
+        Entry(File file, String name, boolean directory, long size, long lastModified, boolean executable,
+              boolean storedByRule) {
+            this.file = file;
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.executable = executable;
+            this.storedByRule = storedByRule;
+        }
+    }
+
+    private static class Compressed {
+        final Entry entry;
+        final int method;
+        final long crc;
+        final long size;
+        final long compressedSize;
+        // compressed data, or null to copy the file as it is
+        final SpillBuffer data;
+        // entry of the previous archive to copy instead, or null
+        final AppetizeZipCache.CachedEntry cached;
+
+        Compressed(Entry entry, int method, long crc, long size, long compressedSize, SpillBuffer data,
+                   AppetizeZipCache.CachedEntry cached) {
+            this.entry = entry;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.data = data;
+            this.cached = cached;
+        }
+
+        void writeTo(AppetizeZipWriter writer, AppetizeZipCache cache) throws IOException {
+            int mode = entry.directory ? 040755 : entry.executable ? 0100755 : 0100644;
+            OutputStream out = writer.putEntry(entry.name, method, ENTRY_TIME, crc, size, compressedSize, mode);
+            long offset = writer.getCount();
+            if (data != null) {
+                data.writeTo(out);
+            } else if (cached != null) {
+                cache.copy(cached, out);
+            } else if (!entry.directory) {
+                copyFile(entry.file, size, out);
+            }
+            writer.closeEntry();
+
+            if (cache != null && !entry.directory) {
+                cache.record(new AppetizeZipCache.CachedEntry(entry.name, size, entry.lastModified,
+                        entry.executable, entry.storedByRule, method, crc, compressedSize, offset));
+            }
+        }
+
+        void dispose() {
+            if (data != null) data.dispose();
+        }
+
+        private static void copyFile(File file, long size, OutputStream out) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buf = new byte[BUFFER_SIZE];
+                long remaining = size;
+                int len;
+                while (remaining > 0 && (len = in.read(buf, 0, (int)Math.min(buf.length, remaining))) >= 0) {
+                    out.write(buf, 0, len);
+                    remaining -= len;
+                }
+                if (remaining > 0) throw new IOException(file + " changed while it was being zipped");
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Holds compressed data in memory, moving it to a temp file once it gets large.
+     */
+    private static class SpillBuffer extends OutputStream {
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File file;
+        private OutputStream fileOut;
+        private long size;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (memory != null && memory.size() + len > MAX_BUFFERED_ENTRY) {
+                file = File.createTempFile("appetize", ".deflate");
+                fileOut = new FileOutputStream(file);
+                memory.writeTo(fileOut);
+                memory = null;
+            }
+            if (memory != null) {
+                memory.write(b, off, len);
+            } else {
+                fileOut.write(b, off, len);
+            }
+            size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null) fileOut.close();
+        }
+
+        long size() {
+            return size;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            if (memory != null) {
+                memory.writeTo(out);
+                return;
+            }
+            Compressed.copyFile(file, size, out);
+        }
+
+        void dispose() {
+            memory = null;
+            if (fileOut != null) {
+                try {
+                    fileOut.close();
+                } catch (IOException e) {
+                    // deleting it anyway
+                }
+            }
+            if (file != null) file.delete();
+        }
+    }
+
+    private static class ZipCallable implements FilePath.FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final AppetizeZipper zipper;
+        private final OutputStream out;
+
+        ZipCallable(AppetizeZipper zipper, OutputStream out) {
+            this.zipper = zipper;
+            this.out = out;
+        }
+
+        public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            zipper.zip(f, out);
+            return null;
+        }
+    }
+}
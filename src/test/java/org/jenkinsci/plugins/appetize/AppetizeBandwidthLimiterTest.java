@@ -0,0 +1,111 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throttling of uploads to a combined bandwidth.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeBandwidthLimiterTest {
+    @Test
+    public void unlimitedStreamIsNotWrapped() throws Exception {
+        AppetizeBandwidthLimiter limiter = new AppetizeBandwidthLimiter(0);
+        assertFalse(limiter.isLimited());
+        OutputStream out = new ByteArrayOutputStream();
+        assertSame(out, limiter.wrap(out));
+
+        long start = System.nanoTime();
+        limiter.acquire(100 * 1024 * 1024);
+        assertTrue(System.nanoTime() - start < 100 * 1000 * 1000L);
+    }
+
+    @Test
+    public void writesAreThrottled() throws Exception {
+        AppetizeBandwidthLimiter limiter = new AppetizeBandwidthLimiter(200 * 1024);
+        assertTrue(limiter.isLimited());
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] data = new byte[100 * 1024];
+        data[data.length - 1] = 1;
+
+        long start = System.currentTimeMillis();
+        OutputStream out = limiter.wrap(buffer);
+        out.write(data);
+        out.write(2);
+        long elapsed = System.currentTimeMillis() - start;
+
+        // half a second's worth, with the bucket starting empty
+        assertTrue("took " + elapsed + " ms", elapsed >= 400 && elapsed < 5000);
+        byte[] expected = new byte[data.length + 1];
+        System.arraycopy(data, 0, expected, 0, data.length);
+        expected[data.length] = 2;
+        assertArrayEquals(expected, buffer.toByteArray());
+    }
+
+    @Test
+    public void concurrentUploadsShareTheLimit() throws Exception {
+        final AppetizeBandwidthLimiter limiter = new AppetizeBandwidthLimiter(200 * 1024);
+        Thread[] threads = new Thread[4];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        limiter.wrap(new ByteArrayOutputStream()).write(new byte[50 * 1024]);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("took " + elapsed + " ms", elapsed >= 800 && elapsed < 10000);
+    }
+
+    @Test
+    public void limitCanBeLifted() throws Exception {
+        AppetizeBandwidthLimiter limiter = new AppetizeBandwidthLimiter(1024);
+        limiter.setBytesPerSecond(0);
+        assertFalse(limiter.isLimited());
+        long start = System.nanoTime();
+        limiter.acquire(1024 * 1024);
+        assertTrue(System.nanoTime() - start < 100 * 1000 * 1000L);
+    }
+}
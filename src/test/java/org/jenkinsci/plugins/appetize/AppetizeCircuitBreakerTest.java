@@ -0,0 +1,122 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * A circuit breaker opens after repeated failures and lets a single probe through once it has
+ * cooled down.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeCircuitBreakerTest {
+    @Test
+    public void staysClosedBelowTheThreshold() throws IOException {
+        AppetizeCircuitBreaker breaker = new AppetizeCircuitBreaker("below.example.com", 60 * 1000);
+        for (int i = 0; i < 4; i++) {
+            breaker.checkClosed();
+            breaker.recordFailure();
+        }
+        breaker.checkClosed();
+        breaker.recordSuccess();
+        // a success starts the count over
+        for (int i = 0; i < 4; i++) {
+            breaker.recordFailure();
+        }
+        breaker.checkClosed();
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() throws IOException {
+        AppetizeCircuitBreaker breaker = new AppetizeCircuitBreaker("open.example.com", 60 * 1000);
+        failRequests(breaker, 5);
+        assertOpen(breaker);
+        assertOpen(breaker);
+    }
+
+    @Test
+    public void letsOneProbeThroughAfterCoolingDown() throws IOException {
+        AppetizeCircuitBreaker breaker = new AppetizeCircuitBreaker("probe.example.com", 0);
+        failRequests(breaker, 5);
+        breaker.checkClosed();
+        // the probe is still running
+        assertOpen(breaker);
+
+        breaker.recordSuccess();
+        breaker.checkClosed();
+        breaker.checkClosed();
+    }
+
+    @Test
+    public void failedProbeReopens() throws IOException {
+        AppetizeCircuitBreaker breaker = new AppetizeCircuitBreaker("reopen.example.com", 0);
+        failRequests(breaker, 5);
+        breaker.checkClosed();
+        breaker.recordFailure();
+        // cooled down again at once, so the next request is the new probe
+        breaker.checkClosed();
+        assertOpen(breaker);
+    }
+
+    @Test
+    public void abortedProbeLetsAnotherThrough() throws IOException {
+        AppetizeCircuitBreaker breaker = new AppetizeCircuitBreaker("abort.example.com", 0);
+        failRequests(breaker, 5);
+        breaker.checkClosed();
+        assertOpen(breaker);
+
+        breaker.probeAborted();
+        breaker.checkClosed();
+        assertOpen(breaker);
+    }
+
+    @Test
+    public void oneBreakerPerHost() {
+        assertSame(AppetizeCircuitBreaker.forHost("shared.example.com"),
+                AppetizeCircuitBreaker.forHost("shared.example.com"));
+    }
+
+    private static void failRequests(AppetizeCircuitBreaker breaker, int times) throws IOException {
+        for (int i = 0; i < times; i++) {
+            breaker.checkClosed();
+            breaker.recordFailure();
+        }
+    }
+
+    private static void assertOpen(AppetizeCircuitBreaker breaker) {
+        try {
+            breaker.checkClosed();
+            fail("request was let through");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
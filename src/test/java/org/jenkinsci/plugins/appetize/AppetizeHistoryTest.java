@@ -0,0 +1,150 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Paging through a job's published apps, newest first, past damaged lines.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeHistoryTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void pagesNewestFirst() throws Exception {
+        AppetizeHistory history = new AppetizeHistory(new File(tmp.getRoot(), AppetizeHistory.FILE_NAME));
+        assertEquals(0, history.size());
+        assertTrue(history.getEntries(0, 10).isEmpty());
+
+        for (int i = 1; i <= 25; i++) {
+            history.append(entry(i));
+        }
+        assertEquals(25, history.size());
+        assertBuilds(history.getEntries(0, 10), 25, 16);
+        assertBuilds(history.getEntries(10, 10), 15, 6);
+        assertBuilds(history.getEntries(20, 10), 5, 1);
+        assertTrue(history.getEntries(25, 10).isEmpty());
+    }
+
+    @Test
+    public void damagedLinesAreLeftOutOfPages() throws Exception {
+        File file = new File(tmp.getRoot(), AppetizeHistory.FILE_NAME);
+        AppetizeHistory history = new AppetizeHistory(file);
+        for (int i = 1; i <= 4; i++) {
+            history.append(entry(i));
+        }
+        appendRaw(file, "{\"buildNumber\": not json\n\n");
+        for (int i = 5; i <= 8; i++) {
+            history.append(entry(i));
+        }
+
+        // a fresh index, as after a restart, and the one built up while appending agree
+        for (AppetizeHistory h : new AppetizeHistory[] { history, new AppetizeHistory(file) }) {
+            assertEquals(8, h.size());
+            assertBuilds(h.getEntries(0, 3), 8, 6);
+            assertBuilds(h.getEntries(3, 3), 5, 3);
+            assertBuilds(h.getEntries(6, 3), 2, 1);
+        }
+    }
+
+    @Test
+    public void lineCutShortByACrashIsSkipped() throws Exception {
+        File file = new File(tmp.getRoot(), AppetizeHistory.FILE_NAME);
+        AppetizeHistory history = new AppetizeHistory(file);
+        history.append(entry(1));
+        appendRaw(file, "{\"buildNumber\":2,\"platf");
+
+        // not counted until it's finished, and never readable
+        assertEquals(1, history.size());
+        history.append(entry(3));
+        assertEquals(2, history.size());
+        List<AppetizeHistory.Entry> entries = history.getEntries(0, 10);
+        assertEquals(2, entries.size());
+        assertEquals(3, entries.get(0).getBuildNumber());
+        assertEquals(1, entries.get(1).getBuildNumber());
+        assertEquals(2, new AppetizeHistory(file).size());
+    }
+
+    @Test
+    public void shorterFileIsIndexedAgain() throws Exception {
+        File file = new File(tmp.getRoot(), AppetizeHistory.FILE_NAME);
+        AppetizeHistory history = new AppetizeHistory(file);
+        for (int i = 1; i <= 5; i++) {
+            history.append(entry(i));
+        }
+        assertEquals(5, history.size());
+
+        assertTrue(file.delete());
+        new AppetizeHistory(file).append(entry(9));
+        assertEquals(1, history.size());
+        assertBuilds(history.getEntries(0, 10), 9, 9);
+    }
+
+    private static AppetizeHistory.Entry entry(int buildNumber) {
+        AppetizeHistory.Entry entry = new AppetizeHistory.Entry();
+        entry.buildNumber = buildNumber;
+        entry.timestamp = buildNumber * 1000L;
+        entry.platform = "ios";
+        entry.publicKey = "key" + buildNumber;
+        entry.size = buildNumber * 100L;
+        return entry;
+    }
+
+    private static void appendRaw(File file, String text) throws IOException {
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Checks the entries are of consecutive builds from newest down to oldest.
+     */
+    private static void assertBuilds(List<AppetizeHistory.Entry> entries, int newest, int oldest) {
+        assertEquals(newest - oldest + 1, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            AppetizeHistory.Entry entry = entries.get(i);
+            assertEquals(newest - i, entry.getBuildNumber());
+            assertEquals("key" + (newest - i), entry.getPublicKey());
+            assertEquals((newest - i) * 100L, entry.getSize());
+        }
+    }
+}
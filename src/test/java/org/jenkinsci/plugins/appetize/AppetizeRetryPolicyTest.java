@@ -0,0 +1,75 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Delays between attempts of a failed request.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeRetryPolicyTest {
+    @Test
+    public void retryAfterIsHonoredUpToFiveMinutes() {
+        AppetizeRetryPolicy policy = new AppetizeRetryPolicy();
+        assertEquals(7000, policy.getDelayMillis(1, 7000));
+        assertEquals(7000, policy.getDelayMillis(3, 7000));
+        assertEquals(5 * 60 * 1000, policy.getDelayMillis(1, 60 * 60 * 1000));
+    }
+
+    @Test
+    public void backoffDoublesWithJitter() {
+        AppetizeRetryPolicy policy = new AppetizeRetryPolicy();
+        for (int i = 0; i < 100; i++) {
+            assertBetween(500, 1000, policy.getDelayMillis(1, 0));
+            assertBetween(1000, 2000, policy.getDelayMillis(2, 0));
+            assertBetween(4000, 8000, policy.getDelayMillis(4, 0));
+        }
+    }
+
+    @Test
+    public void backoffIsCappedAtAMinute() {
+        AppetizeRetryPolicy policy = new AppetizeRetryPolicy();
+        assertBetween(30 * 1000, 60 * 1000, policy.getDelayMillis(10, 0));
+        assertBetween(30 * 1000, 60 * 1000, policy.getDelayMillis(1000, 0));
+    }
+
+    @Test
+    public void atLeastOneAttempt() {
+        assertEquals(1, new AppetizeRetryPolicy(0, 30, 120).getMaxAttempts());
+        AppetizeRetryPolicy policy = new AppetizeRetryPolicy(3, 10, 20);
+        assertEquals(3, policy.getMaxAttempts());
+        assertEquals(10 * 1000, policy.getConnectTimeoutMillis());
+        assertEquals(20 * 1000, policy.getReadTimeoutMillis());
+    }
+
+    private static void assertBetween(long min, long max, long value) {
+        assertTrue(value + " is not between " + min + " and " + max, value >= min && value <= max);
+    }
+}
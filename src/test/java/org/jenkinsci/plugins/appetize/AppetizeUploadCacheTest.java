@@ -0,0 +1,98 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Lookups of previous uploads by content digest.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeUploadCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void missesUntilRecorded() throws Exception {
+        AppetizeUploadCache cache = AppetizeUploadCache.load(new File(tmp.getRoot(), "cache.xml"));
+        assertNull(cache.lookup("job", "digest", "ios", "token"));
+
+        cache.record("job", new AppetizeUploadCache.Entry("digest", "ios", "token", result("key")));
+        assertEquals("key", cache.lookup("job", "digest", "ios", "token").publicKey);
+        assertEquals("key", cache.lookup("job", "digest", "IOS", "token").publicKey);
+    }
+
+    @Test
+    public void missesWhenAnythingDiffers() throws Exception {
+        AppetizeUploadCache cache = AppetizeUploadCache.load(new File(tmp.getRoot(), "cache.xml"));
+        cache.record("job", new AppetizeUploadCache.Entry("digest", "ios", "token", result("key")));
+
+        assertNull(cache.lookup("other job", "digest", "ios", "token"));
+        assertNull(cache.lookup("job", "changed", "ios", "token"));
+        assertNull(cache.lookup("job", "digest", "android", "token"));
+        assertNull(cache.lookup("job", "digest", "ios", "other token"));
+        assertNull(cache.lookup("job", "digest", "ios", null));
+    }
+
+    @Test
+    public void onlyTheLastUploadOfAJobIsKept() throws Exception {
+        AppetizeUploadCache cache = AppetizeUploadCache.load(new File(tmp.getRoot(), "cache.xml"));
+        cache.record("job", new AppetizeUploadCache.Entry("first", "ios", null, result("key")));
+        cache.record("job", new AppetizeUploadCache.Entry("second", "ios", null, result("key")));
+
+        assertNull(cache.lookup("job", "first", "ios", null));
+        assertNotNull(cache.lookup("job", "second", "ios", null));
+    }
+
+    @Test
+    public void survivesARestart() throws Exception {
+        File file = new File(tmp.getRoot(), "cache.xml");
+        AppetizeUploadCache.load(file).record("job", new AppetizeUploadCache.Entry("digest", "ios", "token", result("key")));
+
+        AppetizeUploadCache cache = AppetizeUploadCache.load(file);
+        AppetizeApiService.AppetizeUpdateResult cached = cache.lookup("job", "digest", "ios", "token");
+        assertEquals("key", cached.publicKey);
+        assertEquals("https://appetize.io/app/key", cached.publicURL);
+        assertEquals("https://appetize.io/manage/key", cached.manageURL);
+        assertNull(cache.lookup("job", "changed", "ios", "token"));
+    }
+
+    private static AppetizeApiService.AppetizeUpdateResult result(String publicKey) {
+        AppetizeApiService.AppetizeUpdateResult result = new AppetizeApiService.AppetizeUpdateResult();
+        result.publicKey = publicKey;
+        result.publicURL = "https://appetize.io/app/" + publicKey;
+        result.manageURL = "https://appetize.io/manage/" + publicKey;
+        return result;
+    }
+}
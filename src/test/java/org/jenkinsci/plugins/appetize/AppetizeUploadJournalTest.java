@@ -0,0 +1,143 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Resuming an interrupted upload from the journal in the build directory.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeUploadJournalTest {
+    private static final long LENGTH = 25 * 1024 * 1024;
+    private static final long PART_SIZE = 10 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void multipartUploadResumesAfterTheLastConfirmedPart() throws Exception {
+        File build = tmp.getRoot();
+        AppetizeUploadJournal journal = AppetizeUploadJournal.create(build, "ios", "App.zip", 0, "token", "digest",
+                "https://s3.example.com/presigned");
+        journal.multipartStarted(urls(3), LENGTH, PART_SIZE);
+        journal.partConfirmed(0, "etag-0");
+        journal.partConfirmed(2, "etag-2");
+
+        // as found again after a restart
+        List<AppetizeUploadJournal> journals = AppetizeUploadJournal.loadAll(build);
+        assertEquals(1, journals.size());
+        AppetizeUploadJournal resumed = journals.get(0);
+        assertEquals("ios", resumed.getPlatform());
+        assertEquals("App.zip", resumed.getAppPath());
+        assertEquals("token", resumed.getApiTokenId());
+        assertEquals("digest", resumed.getDigest());
+        assertEquals("https://s3.example.com/presigned", resumed.getPresignedUrl());
+        assertNull(resumed.getUploadedUrl());
+
+        AppetizeApiService.AppetizeMultipartUrls urls = resumed.getMultipartUrls(LENGTH, PART_SIZE);
+        assertNotNull(urls);
+        assertEquals("https://s3.example.com/complete", urls.completeUrl);
+        assertEquals(3, urls.partUrls.size());
+        assertEquals("etag-0", resumed.getConfirmedPart(0));
+        assertNull(resumed.getConfirmedPart(1));
+        assertEquals("etag-2", resumed.getConfirmedPart(2));
+        assertNull(resumed.getConfirmedPart(3));
+
+        resumed.partConfirmed(1, "etag-1");
+        resumed.uploaded(urls.url);
+        resumed = AppetizeUploadJournal.loadAll(build).get(0);
+        assertEquals("etag-1", resumed.getConfirmedPart(1));
+        assertEquals("https://s3.example.com/app.zip", resumed.getUploadedUrl());
+    }
+
+    @Test
+    public void partsOfADifferentFileAreNotReused() throws Exception {
+        AppetizeUploadJournal journal = AppetizeUploadJournal.create(tmp.getRoot(), "ios", "App.zip", 0, "token",
+                "digest", "https://s3.example.com/presigned");
+        journal.multipartStarted(urls(3), LENGTH, PART_SIZE);
+
+        assertNull(journal.getMultipartUrls(LENGTH + 1, PART_SIZE));
+        assertNull(journal.getMultipartUrls(LENGTH, PART_SIZE * 2));
+        assertNotNull(journal.getMultipartUrls(LENGTH, PART_SIZE));
+    }
+
+    @Test
+    public void restartForgetsProgress() throws Exception {
+        AppetizeUploadJournal journal = AppetizeUploadJournal.create(tmp.getRoot(), "ios", "App.zip", 0, "token",
+                "digest", "https://s3.example.com/presigned");
+        journal.multipartStarted(urls(3), LENGTH, PART_SIZE);
+        journal.partConfirmed(0, "etag-0");
+        journal.restart("https://s3.example.com/presigned-again");
+
+        AppetizeUploadJournal resumed = AppetizeUploadJournal.loadAll(tmp.getRoot()).get(0);
+        assertEquals("https://s3.example.com/presigned-again", resumed.getPresignedUrl());
+        assertNull(resumed.getMultipartUrls(LENGTH, PART_SIZE));
+        assertNull(resumed.getConfirmedPart(0));
+    }
+
+    @Test
+    public void journalsOfSeveralAppsLoadInOrder() throws Exception {
+        File build = tmp.getRoot();
+        for (int index : new int[] { 3, 1, 2 }) {
+            AppetizeUploadJournal.create(build, "android", "app" + index + ".apk", index, null, null,
+                    "https://s3.example.com/" + index);
+        }
+
+        List<AppetizeUploadJournal> journals = AppetizeUploadJournal.loadAll(build);
+        assertEquals(3, journals.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, journals.get(i).getIndex());
+            assertEquals("app" + (i + 1) + ".apk", journals.get(i).getAppPath());
+        }
+
+        journals.get(1).delete();
+        assertEquals(2, AppetizeUploadJournal.loadAll(build).size());
+        assertTrue(new File(build, "appetize-upload-1.xml").isFile());
+    }
+
+    private static AppetizeApiService.AppetizeMultipartUrls urls(int parts) {
+        AppetizeApiService.AppetizeMultipartUrls urls = new AppetizeApiService.AppetizeMultipartUrls();
+        urls.url = "https://s3.example.com/app.zip";
+        urls.completeUrl = "https://s3.example.com/complete";
+        urls.partUrls = Arrays.asList(new String[parts]);
+        for (int i = 0; i < parts; i++) {
+            urls.partUrls.set(i, "https://s3.example.com/part" + i);
+        }
+        return urls;
+    }
+}
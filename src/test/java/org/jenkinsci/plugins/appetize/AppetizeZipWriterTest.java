@@ -0,0 +1,192 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Archives written by {@link AppetizeZipWriter} must read back with the JDK's own zip support.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeZipWriterTest {
+    private static final long DOS_TIME = (1 << 21) | (1 << 16);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void storedAndDeflatedEntriesReadBack() throws Exception {
+        byte[] stored = "stored as is".getBytes("UTF-8");
+        byte[] deflated = repeat("compresses well ", 1000);
+
+        File zip = tmp.newFile("app.zip");
+        OutputStream out = new FileOutputStream(zip);
+        try {
+            AppetizeZipWriter writer = new AppetizeZipWriter(out);
+            writer.putEntry("App.app/", AppetizeZipWriter.STORED, DOS_TIME, 0, 0, 0, 040755);
+            writer.closeEntry();
+            putStored(writer, "App.app/Info.plist", stored);
+            byte[] compressed = deflate(deflated);
+            writer.putEntry("App.app/App", AppetizeZipWriter.DEFLATED, DOS_TIME, crc(deflated), deflated.length,
+                    compressed.length, 0100755).write(compressed);
+            writer.closeEntry();
+            writer.finish();
+        } finally {
+            out.close();
+        }
+
+        ZipFile file = new ZipFile(zip);
+        try {
+            assertEquals(3, file.size());
+            assertEquals(true, file.getEntry("App.app/").isDirectory());
+            assertEquals(ZipEntry.STORED, file.getEntry("App.app/Info.plist").getMethod());
+            assertArrayEquals(stored, read(file, "App.app/Info.plist"));
+            assertEquals(ZipEntry.DEFLATED, file.getEntry("App.app/App").getMethod());
+            assertArrayEquals(deflated, read(file, "App.app/App"));
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void moreEntriesThanFitInTheEndRecordUseZip64() throws Exception {
+        int count = 0x10000 + 10;
+        byte[] data = "x".getBytes("UTF-8");
+
+        File zip = tmp.newFile("many.zip");
+        OutputStream out = new FileOutputStream(zip);
+        try {
+            AppetizeZipWriter writer = new AppetizeZipWriter(out);
+            for (int i = 0; i < count; i++) {
+                putStored(writer, "App.app/" + i, data);
+            }
+            writer.finish();
+        } finally {
+            out.close();
+        }
+
+        ZipFile file = new ZipFile(zip);
+        try {
+            assertEquals(count, file.size());
+            int read = 0;
+            for (Enumeration<? extends ZipEntry> e = file.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                assertArrayEquals(data, read(file, entry.getName()));
+                read++;
+            }
+            assertEquals(count, read);
+            assertArrayEquals(data, read(file, "App.app/" + (count - 1)));
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void entryOfTheWrongLengthIsRejected() throws Exception {
+        AppetizeZipWriter writer = new AppetizeZipWriter(new ByteArrayOutputStream());
+        writer.putEntry("short", AppetizeZipWriter.STORED, DOS_TIME, 0, 10, 10, 0100644).write(new byte[5]);
+        try {
+            writer.closeEntry();
+            fail("closed an entry with 5 of its 10 bytes");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void entriesCannotOverlap() throws Exception {
+        AppetizeZipWriter writer = new AppetizeZipWriter(new ByteArrayOutputStream());
+        writer.putEntry("first", AppetizeZipWriter.STORED, DOS_TIME, 0, 0, 0, 0100644);
+        writer.putEntry("second", AppetizeZipWriter.STORED, DOS_TIME, 0, 0, 0, 0100644);
+    }
+
+    private static void putStored(AppetizeZipWriter writer, String name, byte[] data) throws IOException {
+        writer.putEntry(name, AppetizeZipWriter.STORED, DOS_TIME, crc(data), data.length, data.length, 0100644)
+                .write(data);
+        writer.closeEntry();
+    }
+
+    static byte[] repeat(String s, int times) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(s).append(i);
+        }
+        return builder.toString().getBytes("UTF-8");
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            DeflaterOutputStream out = new DeflaterOutputStream(buffer, deflater);
+            out.write(data);
+            out.close();
+        } finally {
+            deflater.end();
+        }
+        return buffer.toByteArray();
+    }
+
+    static byte[] read(ZipFile file, String name) throws IOException {
+        InputStream in = file.getInputStream(file.getEntry(name));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                out.write(buf, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Appetize.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.appetize;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Zips app bundles compressed on several threads, and incrementally from the previous archive,
+ * and reads them back.
+ *
+ * Developers: Weiyin He and John Snyder
+ */
+public class AppetizeZipperTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void parallelDeflateRoundTrip() throws Exception {
+        File app = createApp();
+        File zip = zip(new AppetizeZipper(6, "png", 4, false), app, "app.zip");
+        checkArchive(zip, app);
+    }
+
+    @Test
+    public void incrementalZipPicksUpChanges() throws Exception {
+        File app = createApp();
+        AppetizeZipper zipper = new AppetizeZipper(6, "png", 4, true);
+        checkArchive(zip(zipper, app, "first.zip"), app);
+
+        write(new File(app, "Frameworks/Lib.framework/Lib"), "changed ".getBytes("UTF-8"));
+        write(new File(app, "added.txt"), AppetizeZipWriterTest.repeat("new file ", 100));
+        checkArchive(zip(zipper, app, "second.zip"), app);
+    }
+
+    @Test
+    public void interruptedCleanupKeepsTheFailure() throws Exception {
+        File app = createApp();
+        OutputStream failing = new OutputStream() {
+            public void write(int b) throws IOException {
+                // the build is aborted while the archive is being written
+                Thread.currentThread().interrupt();
+                throw new IOException("Disk full");
+            }
+        };
+        try {
+            new AppetizeZipper(6, "png", 4, false).zip(app, failing);
+            fail("The write failure was not reported");
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+        assertTrue(Thread.interrupted());
+    }
+
+    private File createApp() throws IOException {
+        File app = tmp.newFolder("App.app");
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            write(new File(app, "Resources/text" + i + ".txt"), AppetizeZipWriterTest.repeat("line " + i + " ", i * 50));
+        }
+        byte[] noise = new byte[64 * 1024];
+        random.nextBytes(noise);
+        write(new File(app, "Resources/icon.png"), noise);
+        write(new File(app, "Frameworks/Lib.framework/Lib"), noise);
+        // larger than the zipper keeps in memory, so it spills to disk
+        write(new File(app, "App"), AppetizeZipWriterTest.repeat("executable ", 300 * 1024));
+        return app;
+    }
+
+    private File zip(AppetizeZipper zipper, File app, String name) throws IOException, InterruptedException {
+        File zip = new File(tmp.getRoot(), name);
+        OutputStream out = new FileOutputStream(zip);
+        try {
+            zipper.zip(app, out);
+        } finally {
+            out.close();
+        }
+        return zip;
+    }
+
+    /**
+     * Checks that every file of the app is in the archive with the same content.
+     */
+    private static void checkArchive(File zip, File app) throws IOException {
+        ZipFile file = new ZipFile(zip);
+        try {
+            assertEquals(count(app), file.size());
+            check(file, app, app.getName());
+            assertEquals(ZipEntry.STORED, file.getEntry("App.app/Resources/icon.png").getMethod());
+            assertEquals(ZipEntry.DEFLATED, file.getEntry("App.app/App").getMethod());
+            // incompressible, so stored even though its extension isn't
+            assertEquals(ZipEntry.STORED, file.getEntry("App.app/Frameworks/Lib.framework/Lib").getMethod());
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void check(ZipFile zip, File file, String name) throws IOException {
+        if (file.isDirectory()) {
+            assertNotNull(name, zip.getEntry(name + "/"));
+            for (File child : file.listFiles()) {
+                check(zip, child, name + "/" + child.getName());
+            }
+        } else {
+            assertArrayEquals(name, readFile(file), AppetizeZipWriterTest.read(zip, name));
+        }
+    }
+
+    private static int count(File file) {
+        int count = 1;
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                count += count(child);
+            }
+        }
+        return count;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}